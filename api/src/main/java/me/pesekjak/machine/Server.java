@@ -264,10 +264,10 @@ public interface Server {
     }
 
     /**
-     * @return how often the server reads the packets sent by client
+     * @return number of threads handling the client connections
      */
-    default int getServerResponsiveness() {
-        return getProperties().getServerResponsiveness();
+    default int getNetworkThreads() {
+        return getProperties().getNetworkThreads();
     }
 
     /**
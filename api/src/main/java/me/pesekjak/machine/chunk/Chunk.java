@@ -8,6 +8,7 @@ import me.pesekjak.machine.world.biomes.Biome;
 import me.pesekjak.machine.world.blocks.BlockType;
 import me.pesekjak.machine.world.blocks.BlockVisual;
 import me.pesekjak.machine.world.blocks.WorldBlock;
+import me.pesekjak.machine.world.generation.Generator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Unmodifiable;
@@ -104,6 +105,14 @@ public interface Chunk extends ServerProperty {
      */
     void setBiome(int x, int y, int z, @NotNull Biome biome);
 
+    /**
+     * Generates all blocks of this chunk using given generator, the chunk is
+     * generated section by section.
+     * @param generator generator to use
+     * @see Generator#generate(me.pesekjak.machine.world.generation.GenerationUnit)
+     */
+    void generate(@NotNull Generator generator);
+
     /**
      * Returns unmodifiable list of all sections.
      * @return all sections of this chunk
@@ -0,0 +1,22 @@
+package me.pesekjak.machine.chunk;
+
+/**
+ * Reason for a chunk to stay loaded, chunks without any tickets
+ * are unloaded after a while.
+ */
+public enum ChunkTicket {
+
+    /**
+     * Chunk is in a view distance of a player.
+     */
+    PLAYER,
+    /**
+     * Chunk is in the spawn area of the world.
+     */
+    SPAWN,
+    /**
+     * Chunk is kept loaded by a plugin.
+     */
+    PLUGIN
+
+}
@@ -70,6 +70,13 @@ public interface Palette extends Writable, Cloneable {
      */
     void replaceAll(@NotNull EntryFunction function);
 
+    /**
+     * Replaces all entries of a value with another value.
+     * @param value value to replace
+     * @param newValue value to replace the old value with
+     */
+    void replaceAll(int value, int newValue);
+
     /**
      * @return number of entries in this palette.
      */
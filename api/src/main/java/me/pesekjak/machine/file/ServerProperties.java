@@ -75,9 +75,45 @@ public interface ServerProperties extends ServerFile, ServerProperty {
     int getTps();
 
     /**
-     * @return server responsiveness defined in the server's properties
+     * @return number of network threads defined in the server's properties,
+     * 0 if the number of available processors should be used
      */
-    int getServerResponsiveness();
+    int getNetworkThreads();
+
+    /**
+     * @return level of the packet compression defined in the server's properties,
+     * -1 if the default level should be used
+     */
+    int getCompressionLevel();
+
+    /**
+     * @return number of megabytes of outgoing data that can wait for a client
+     * before it's disconnected defined in the server's properties, 0 if there is no limit
+     */
+    int getOutboundLimit();
+
+    /**
+     * @return number of seconds a chunk without tickets stays loaded defined
+     * in the server's properties
+     */
+    int getChunkUnloadDelay();
+
+    /**
+     * @return number of unloaded chunks kept in memory defined in the server's properties,
+     * 0 if unloaded chunks shouldn't be kept
+     */
+    int getChunkCacheSize();
+
+    /**
+     * @return number of seconds between automatic saves of the worlds defined
+     * in the server's properties, 0 if the worlds aren't saved automatically
+     */
+    int getAutosavePeriod();
+
+    /**
+     * @return max number of regions written at the same time defined in the server's properties
+     */
+    int getRegionSaveThreads();
 
     /**
      * @return server's brand defined in the server's properties
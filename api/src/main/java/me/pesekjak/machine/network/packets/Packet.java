@@ -69,6 +69,9 @@ public interface Packet extends Cloneable {
 
         public static final int OFFSET = 12;
 
+        private static final Set<PacketState> IN = Set.of(HANDSHAKING_IN, STATUS_IN, LOGIN_IN, PLAY_IN);
+        private static final Set<PacketState> OUT = Set.of(HANDSHAKING_OUT, STATUS_OUT, LOGIN_OUT, PLAY_OUT);
+
         @Getter
         private final int mask;
 
@@ -92,14 +95,14 @@ public interface Packet extends Cloneable {
          * @return unmodifiable set of packet states for packets from client to server
          */
         public static @Unmodifiable @NotNull Set<PacketState> in() {
-            return Set.of(HANDSHAKING_IN, STATUS_IN, LOGIN_IN, PLAY_IN);
+            return IN;
         }
 
         /**
          * @return unmodifiable set of packet states for packets from server to client
          */
         public static @Unmodifiable @NotNull Set<PacketState> out() {
-            return Set.of(HANDSHAKING_OUT, STATUS_OUT, LOGIN_OUT, PLAY_OUT);
+            return OUT;
         }
 
     }
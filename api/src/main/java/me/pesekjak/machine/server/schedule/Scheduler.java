@@ -1,13 +1,13 @@
 package me.pesekjak.machine.server.schedule;
 
-import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 import org.jetbrains.annotations.*;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * Scheduler, can schedule tasks on a thread.
@@ -17,46 +17,277 @@ import java.util.concurrent.*;
  * scheduler instance from different threads. To unblock the
  * thread {@link Scheduler#shutdown()} should be used, scheduler can
  * be then run again on the same or a different thread.
+ * <p>
+ * The blocked thread runs ticks at a fixed rate, each tick runs the handlers
+ * of all {@link TickPhase phases} in their order, tasks are fired during the
+ * {@link TickPhase#TASKS} phase. If a tick takes longer than its budget,
+ * the next ticks are run right away to catch up, if the scheduler falls behind
+ * by more than {@link Scheduler#MAX_CATCH_UP_TICKS} ticks, the missed ticks
+ * are skipped. Exceptions thrown by the tick handlers and sync tasks are passed
+ * to the exception handler and the scheduler keeps ticking.
+ * <p>
+ * Delays and periods of the tasks are rounded up to whole ticks, the tasks
+ * are kept in a {@link TimingWheel} until the tick they should fire in.
+ * Sync tasks then run on the scheduler's thread, async tasks are passed
+ * to the async executor.
  * @see Scheduler#task(TaskRunnable)
  * @see TaskBuilder#run(Scheduler)
  */
 @BlockingExecutor
 public class Scheduler {
 
-    @Getter(AccessLevel.PROTECTED)
-    private final @NotNull BlockingQueue<TaskSession> syncQueue;
-    @Getter(AccessLevel.PROTECTED)
-    private final @NotNull ScheduledExecutorService threadPoolExecutor;
+    public static final int DEFAULT_TPS = 20;
+    public static final int MAX_CATCH_UP_TICKS = 10;
+    private static final int TICK_SAMPLES = 100;
+
+    @Getter
+    private final @NotNull Executor asyncExecutor;
 
-    protected final HashSet<TaskSession> sessions = new HashSet<>();
+    protected final Set<TaskSession> sessions = ConcurrentHashMap.newKeySet();
+
+    private final TimingWheel wheel = new TimingWheel();
+    private final Queue<TaskSession> submissions = new ConcurrentLinkedQueue<>();
+    private volatile @Nullable Thread thread;
+
+    private final Map<TickPhase, List<Runnable>> tickHandlers = new EnumMap<>(TickPhase.class);
 
     @Getter
-    private boolean running = false;
+    private volatile boolean running = false;
+
+    @Getter
+    private volatile int tps = DEFAULT_TPS;
+    @Getter
+    private volatile long tickCount;
+    @Getter
+    private volatile long skippedTicks;
+    @Getter
+    private volatile long lastTickDuration;
+    private final long[] tickDurations = new long[TICK_SAMPLES];
+    private volatile long tickDurationsSum;
+
+    /**
+     * Called with the number of skipped ticks each time the scheduler
+     * falls too far behind and skips ticks.
+     */
+    @Setter
+    private volatile @Nullable LongConsumer overloadHandler;
+
+    /**
+     * Called with the exceptions thrown by the tick handlers and the sync tasks.
+     */
+    @Setter
+    private volatile @NotNull Consumer<Throwable> exceptionHandler = Throwable::printStackTrace;
 
     /**
      * Creates scheduler for the current thread.
-     * @param threadPoolSize thread pool size for the executor
+     * @param threadPoolSize thread pool size for the async executor
      */
     public Scheduler(int threadPoolSize) {
-        syncQueue = new LinkedBlockingQueue<>();
-        threadPoolExecutor = Executors.newScheduledThreadPool(threadPoolSize, Executors.defaultThreadFactory());
+        this(Executors.newFixedThreadPool(threadPoolSize, Executors.defaultThreadFactory()));
+    }
+
+    /**
+     * Creates scheduler for the current thread.
+     * @param asyncExecutor executor running the async tasks
+     */
+    public Scheduler(@NotNull Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        for(TickPhase phase : TickPhase.values())
+            tickHandlers.put(phase, new CopyOnWriteArrayList<>());
+    }
+
+    /**
+     * Runs the scheduler on the current thread with the default
+     * ticks per second.
+     * @throws InterruptedException if interrupted while running
+     * @see Scheduler#run(int)
+     */
+    @Blocking
+    public void run() throws InterruptedException {
+        run(DEFAULT_TPS);
     }
 
     /**
      * Runs the scheduler on the current thread and blocks it until
      * the scheduler is shutdown, to run tasks on the blocked thread
      * {@link Scheduler#task(TaskRunnable)} can be used.
+     * @param tps ticks per second
      * @throws InterruptedException if interrupted while running
      */
     @Blocking
-    public void run() throws InterruptedException {
+    public void run(@Range(from = 1, to = Integer.MAX_VALUE) int tps) throws InterruptedException {
+        if(tps <= 0)
+            throw new IllegalArgumentException("Ticks per second have to be positive");
+        this.tps = tps;
+        final long budget = getTickBudget();
         running = true;
-        sessions.clear();
+        thread = Thread.currentThread();
+        long nextTick = System.nanoTime();
+        try {
+            loop(budget, nextTick);
+        } finally {
+            thread = null;
+            wheel.clear();
+        }
+    }
+
+    /**
+     * Runs the ticks until the scheduler is shutdown.
+     * @param budget time each tick has in nanoseconds
+     * @param nextTick time the first tick should start at
+     */
+    private void loop(long budget, long nextTick) throws InterruptedException {
         while (!Thread.interrupted() && running) {
-            TaskSession next = syncQueue.take();
-            if(running && next.wrapped != null)
-                next.wrapped.run(next.input, next);
+            final long start = System.nanoTime();
+            tick();
+            final long end = System.nanoTime();
+            recordTick(end - start);
+
+            nextTick += budget;
+            final long behind = end - nextTick;
+            if(behind > MAX_CATCH_UP_TICKS * budget) {
+                final long skipped = behind / budget;
+                nextTick += skipped * budget;
+                skippedTicks += skipped;
+                final LongConsumer handler = overloadHandler;
+                if(handler != null) handler.accept(skipped);
+            }
+            final long wait = nextTick - System.nanoTime();
+            if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Runs a single tick, handlers of all phases are called in their order.
+     */
+    private void tick() {
+        for(TickPhase phase : TickPhase.values()) {
+            if(!running) return;
+            if(phase == TickPhase.TASKS) fireTasks();
+            for(Runnable handler : tickHandlers.get(phase)) {
+                try {
+                    handler.run();
+                } catch (Exception exception) {
+                    exceptionHandler.accept(exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the tasks submitted from other threads to the timing wheel,
+     * moves the wheel to the next tick and fires its tasks.
+     */
+    private void fireTasks() {
+        TaskSession session;
+        while ((session = submissions.poll()) != null) {
+            if(!session.isStopped())
+                wheel.add(session, deadline(toTicks(session.submittedDelay, TimeUnit.NANOSECONDS)));
+        }
+        wheel.advance();
+        while (running && (session = wheel.poll()) != null) {
+            try {
+                session.fire();
+            } catch (Exception exception) {
+                exceptionHandler.accept(exception);
+            }
+        }
+    }
+
+    /**
+     * Schedules a task session to fire after given delay, sessions scheduled
+     * with no delay fire in the next tick. The delay is converted to ticks on the
+     * scheduler's thread, so it uses the ticks per second the scheduler runs with
+     * even if the session is scheduled before the scheduler is run.
+     * @param session session to schedule
+     * @param delay delay in nanoseconds
+     */
+    void schedule(@NotNull TaskSession session, long delay) {
+        if(Thread.currentThread() == thread) {
+            wheel.add(session, deadline(toTicks(delay, TimeUnit.NANOSECONDS)));
+            return;
         }
+        session.submittedDelay = delay;
+        submissions.add(session);
+    }
+
+    /**
+     * Removes a task session from the timing wheel, if called from
+     * a different thread than the scheduler's, the stopped session
+     * is removed once it's reached by the wheel.
+     * @param session session to cancel
+     */
+    void cancel(@NotNull TaskSession session) {
+        if(Thread.currentThread() == thread)
+            wheel.remove(session);
+    }
+
+    /**
+     * @param ticks delay in ticks
+     * @return tick the delay ends in
+     */
+    private long deadline(long ticks) {
+        final long tick = wheel.getTick();
+        return ticks >= Long.MAX_VALUE - tick ? Long.MAX_VALUE : tick + ticks;
+    }
+
+    /**
+     * Converts a duration to the number of ticks, rounded up.
+     * @param duration duration
+     * @param unit time unit of the duration
+     * @return number of ticks
+     */
+    public long toTicks(long duration, @NotNull TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+        final long budget = getTickBudget();
+        return nanos / budget + (nanos % budget != 0 ? 1 : 0);
+    }
+
+    /**
+     * Records the duration of the last tick.
+     * @param duration duration of the tick in nanoseconds
+     */
+    private void recordTick(long duration) {
+        final int index = (int) (tickCount % TICK_SAMPLES);
+        tickDurationsSum += duration - tickDurations[index];
+        tickDurations[index] = duration;
+        lastTickDuration = duration;
+        tickCount++;
+    }
+
+    /**
+     * @return time each tick has in nanoseconds
+     */
+    public long getTickBudget() {
+        return TimeUnit.SECONDS.toNanos(1) / tps;
+    }
+
+    /**
+     * @return average duration of the last ticks in nanoseconds
+     */
+    public long getAverageTickDuration() {
+        final long samples = Math.min(tickCount, TICK_SAMPLES);
+        return samples != 0 ? tickDurationsSum / samples : 0;
+    }
+
+    /**
+     * Registers a handler called every tick during given phase,
+     * handlers of the same phase are called in the order they were added.
+     * @param phase phase to call the handler in
+     * @param handler handler to register
+     */
+    public void addTickHandler(@NotNull TickPhase phase, @NotNull Runnable handler) {
+        tickHandlers.get(phase).add(handler);
+    }
+
+    /**
+     * Unregisters a tick handler.
+     * @param phase phase the handler was registered for
+     * @param handler handler to unregister
+     * @return if the handler was registered
+     */
+    public boolean removeTickHandler(@NotNull TickPhase phase, @NotNull Runnable handler) {
+        return tickHandlers.get(phase).remove(handler);
     }
 
     /**
@@ -67,10 +298,32 @@ public class Scheduler {
     @NonBlocking
     public void shutdown() throws InterruptedException {
         running = false;
-        syncQueue.clear();
-        syncQueue.put(new TaskSession((input, session) -> null)); // unblocking
+        submissions.clear();
         for(TaskSession session : sessions)
             session.terminate();
+        sessions.clear();
+    }
+
+    /**
+     * Phases of a tick, in the order they are run.
+     */
+    public enum TickPhase {
+        /**
+         * Processing of the packets received from the clients.
+         */
+        NETWORK_INPUT,
+        /**
+         * Sync tasks and handlers that should run after them.
+         */
+        TASKS,
+        /**
+         * Ticking of the worlds and their entities.
+         */
+        WORLD,
+        /**
+         * Sending of the packets written during the tick to the clients.
+         */
+        NETWORK_FLUSH
     }
 
     @Contract("_ -> new")
@@ -6,8 +6,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -19,6 +19,7 @@ public class TaskSession {
 
     private Scheduler scheduler;
     private boolean running = false;
+    private final AtomicBoolean stopped = new AtomicBoolean();
 
     private final @NotNull TaskRunnable<?> runnable;
     protected @NotNull Execution execution = Execution.SYNC;
@@ -33,9 +34,17 @@ public class TaskSession {
     protected @Nullable Object input;
     protected final AtomicReference<Object> output = new AtomicReference<>();
 
-    protected @Nullable TaskRunnable<?> wrapped;
+    private long periodNanos;
+    private final AtomicBoolean executing = new AtomicBoolean();
+    private final Runnable asyncExecution = this::executeAsync;
+    private volatile @Nullable Thread executingThread;
 
-    private ScheduledFuture<?> asyncScheduledFuture;
+    // state of the session in the timing wheel, accessed only from the scheduler's thread
+    long deadline;
+    int wheelSlot = -1;
+    @Nullable TaskSession wheelPrevious;
+    @Nullable TaskSession wheelNext;
+    volatile long submittedDelay;
 
     /**
      * Runs the task.
@@ -48,49 +57,67 @@ public class TaskSession {
         this.scheduler = scheduler;
         scheduler.sessions.add(this);
         this.input = previous != null ? previous.output.get() : null;
+        periodNanos = unit.toNanos(period);
+
+        final long delayNanos = unit.toNanos(delay);
+        if(execution == Execution.ASYNC && delayNanos == 0) {
+            // async tasks without delay don't have to wait for the next tick
+            if(repeating) scheduler.schedule(this, periodNanos);
+            dispatch();
+            return;
+        }
+        scheduler.schedule(this, delayNanos);
+    }
 
-        if(execution == Execution.SYNC) {
-            if(!repeating) {
-                wrapped = (i, session) -> {
-                    output.set(runnable.run(i, session));
-                    runFuture();
-                    return null;
-                };
-                scheduler.getThreadPoolExecutor().schedule(() -> {
-                    scheduler.getSyncQueue().add(this);
-                }, delay, unit);
-            } else {
-                wrapped = (i, session) -> {
-                    output.set(runnable.run(i, session));
-                    return null;
-                };
-                scheduler.getThreadPoolExecutor().scheduleAtFixedRate(
-                        () -> scheduler.getSyncQueue().add(this),
-                        delay, period, unit
-                );
-            }
-        } else if(execution == Execution.ASYNC) {
-            if(!repeating) {
-                wrapped = (i, session) -> {
-                    asyncScheduledFuture = scheduler.getThreadPoolExecutor().schedule(() -> {
-                        output.set(runnable.run(i, session));
-                        runFuture();
-                    }, delay, unit);
-                    return null;
-                };
-            } else {
-                wrapped = (i, session) -> {
-                    asyncScheduledFuture = scheduler.getThreadPoolExecutor().scheduleAtFixedRate(
-                            () -> output.set(runnable.run(i, session)),
-                            delay, period, unit
-                    );
-                    return null;
-                };
-            }
-            wrapped.run(input, this);
+    /**
+     * Fires the task once the timing wheel of the scheduler reaches it,
+     * repeating tasks are scheduled again before they're executed.
+     */
+    void fire() {
+        if(stopped.get()) return;
+        if(repeating) scheduler.schedule(this, periodNanos);
+        if(execution == Execution.SYNC) execute();
+        else dispatch();
+    }
+
+    /**
+     * Passes the task to the async executor of the scheduler, if the previous
+     * execution of the task hasn't finished yet, this execution is skipped.
+     */
+    private void dispatch() {
+        if(!executing.compareAndSet(false, true)) return;
+        try {
+            scheduler.getAsyncExecutor().execute(asyncExecution);
+        } catch (RuntimeException exception) {
+            executing.set(false);
+            throw exception;
+        }
+    }
+
+    /**
+     * Executes the task on the current thread of the async executor.
+     */
+    private void executeAsync() {
+        executingThread = Thread.currentThread();
+        try {
+            execute();
+        } finally {
+            executingThread = null;
+            executing.set(false);
         }
     }
 
+    /**
+     * Executes the task on the current thread, if the task doesn't repeat,
+     * the next task in the order is run afterwards.
+     */
+    private void execute() {
+        if(stopped.get()) return;
+        output.set(runnable.run(input, this));
+        if(!repeating && stopped.compareAndSet(false, true))
+            runFuture();
+    }
+
     /**
      * Runs the next task in the order.
      */
@@ -101,6 +128,13 @@ public class TaskSession {
         future.run(scheduler);
     }
 
+    /**
+     * @return if the task has been stopped or has finished
+     */
+    protected boolean isStopped() {
+        return stopped.get();
+    }
+
     /**
      * Stops the task from repeating, stops the running code and
      * then runs the next task in the order.
@@ -117,18 +151,27 @@ public class TaskSession {
     public void stop(boolean interrupt, boolean next) {
         if(!running)
             throw new IllegalStateException("You can't stop not running task");
-        if(asyncScheduledFuture != null) {
-            asyncScheduledFuture.cancel(interrupt);
-            if(next) runFuture();
-        }
+        if(!stopped.compareAndSet(false, true)) return;
+        scheduler.cancel(this);
+        if(interrupt) interrupt();
+        if(next) runFuture();
     }
 
     /**
      * Terminates the task.
      */
     protected void terminate() {
-        if(asyncScheduledFuture != null)
-            asyncScheduledFuture.cancel(true);
+        stopped.set(true);
+        interrupt();
+    }
+
+    /**
+     * Interrupts the thread of the async executor executing this task.
+     */
+    private void interrupt() {
+        final Thread thread = executingThread;
+        if(thread != null && thread != Thread.currentThread())
+            thread.interrupt();
     }
 
     /**
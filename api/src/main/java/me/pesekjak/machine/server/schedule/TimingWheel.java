@@ -0,0 +1,131 @@
+package me.pesekjak.machine.server.schedule;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of task sessions, keyed by the tick
+ * the sessions should fire in.
+ * <p>
+ * Each level has 64 slots, a slot of the first level holds the sessions of
+ * a single tick and a slot of each next level spans all slots of the previous level.
+ * Sessions are linked in intrusive lists of their slots, so adding, removing and
+ * firing a session takes constant time and doesn't allocate. Once the wheel reaches
+ * a slot of a higher level, its sessions are moved to the lower levels.
+ * <p>
+ * Can be accessed only from the thread the scheduler runs on.
+ */
+final class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final @Nullable TaskSession[] slots = new TaskSession[LEVELS * SLOTS];
+    private long tick;
+
+    /**
+     * @return last tick of the wheel
+     */
+    long getTick() {
+        return tick;
+    }
+
+    /**
+     * Adds a session to the wheel, sessions with deadline that has already
+     * passed fire in the next tick.
+     * @param session session to add
+     * @param deadline tick the session should fire in
+     */
+    void add(@NotNull TaskSession session, long deadline) {
+        if(session.wheelSlot != -1) remove(session);
+        session.deadline = Math.max(deadline, tick + 1);
+        link(session);
+    }
+
+    /**
+     * Removes a session from the wheel.
+     * @param session session to remove
+     */
+    void remove(@NotNull TaskSession session) {
+        if(session.wheelSlot == -1) return;
+        final TaskSession previous = session.wheelPrevious, next = session.wheelNext;
+        if(previous != null) previous.wheelNext = next;
+        else slots[session.wheelSlot] = next;
+        if(next != null) next.wheelPrevious = previous;
+        session.wheelPrevious = null;
+        session.wheelNext = null;
+        session.wheelSlot = -1;
+    }
+
+    /**
+     * Moves the wheel to the next tick, sessions of the higher level slots
+     * reached by the wheel are moved to the lower levels.
+     */
+    void advance() {
+        tick++;
+        for(int level = LEVELS - 1; level > 0; level--) {
+            final int shift = SLOT_BITS * level;
+            if((tick & ((1L << shift) - 1)) != 0) continue;
+            final int index = level * SLOTS + (int) ((tick >>> shift) & SLOT_MASK);
+            TaskSession session = slots[index];
+            slots[index] = null;
+            while(session != null) {
+                final TaskSession next = session.wheelNext;
+                session.wheelPrevious = null;
+                session.wheelNext = null;
+                link(session);
+                session = next;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns next session that should fire in the current tick.
+     * @return next session, null if there are no more sessions for the current tick
+     */
+    @Nullable TaskSession poll() {
+        final TaskSession session = slots[(int) (tick & SLOT_MASK)];
+        if(session != null) remove(session);
+        return session;
+    }
+
+    /**
+     * Removes all sessions from the wheel.
+     */
+    void clear() {
+        for(TaskSession head : slots) {
+            TaskSession session = head;
+            while(session != null) {
+                final TaskSession next = session.wheelNext;
+                session.wheelPrevious = null;
+                session.wheelNext = null;
+                session.wheelSlot = -1;
+                session = next;
+            }
+        }
+        Arrays.fill(slots, null);
+    }
+
+    /**
+     * Links a session to the slot of its deadline, on the lowest level
+     * that spans both the current tick and the deadline.
+     * @param session session to link
+     */
+    private void link(@NotNull TaskSession session) {
+        int level = 0;
+        while(level < LEVELS - 1
+                && (session.deadline >>> (SLOT_BITS * (level + 1))) != (tick >>> (SLOT_BITS * (level + 1))))
+            level++;
+        final int index = level * SLOTS + (int) ((session.deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+        final TaskSession head = slots[index];
+        session.wheelSlot = index;
+        session.wheelNext = head;
+        if(head != null) head.wheelPrevious = session;
+        slots[index] = session;
+    }
+
+}
@@ -1,6 +1,7 @@
 package me.pesekjak.machine.world;
 
 import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkTicket;
 import me.pesekjak.machine.entities.Entity;
 import me.pesekjak.machine.entities.Player;
 import me.pesekjak.machine.server.ServerProperty;
@@ -17,6 +18,7 @@ import org.jetbrains.annotations.Unmodifiable;
 import java.io.IOException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static me.pesekjak.machine.chunk.Chunk.CHUNK_SIZE_BITS;
@@ -142,6 +144,46 @@ public interface World extends ServerProperty {
      */
     @NotNull Chunk getChunk(int chunkX, int chunkZ);
 
+    /**
+     * Returns chunk with given chunk coordinates, if the chunk isn't loaded yet,
+     * it's loaded or generated asynchronously.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param priority priority of the request, chunks with lower values are loaded
+     *                 first (for example squared distance from a player)
+     * @return future completed with the chunk once it's loaded
+     */
+    @NotNull CompletableFuture<Chunk> getChunkAsync(int chunkX, int chunkZ, int priority);
+
+    /**
+     * Returns chunk with given chunk coordinates, if the chunk isn't loaded yet,
+     * it's loaded or generated asynchronously with the highest priority.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return future completed with the chunk once it's loaded
+     */
+    default @NotNull CompletableFuture<Chunk> getChunkAsync(int chunkX, int chunkZ) {
+        return getChunkAsync(chunkX, chunkZ, 0);
+    }
+
+    /**
+     * Adds a ticket to the chunk at given coordinates, chunk stays loaded
+     * as long as it has at least one ticket.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param ticket ticket to add
+     */
+    void addTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket);
+
+    /**
+     * Removes a ticket from the chunk at given coordinates, once the chunk has no
+     * tickets left, it's unloaded after a delay.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param ticket ticket to remove
+     */
+    void removeTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket);
+
     /**
      * @param position position
      * @return chunk at given position
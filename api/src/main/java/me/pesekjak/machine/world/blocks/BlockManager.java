@@ -63,6 +63,22 @@ public interface BlockManager extends ServerProperty {
      */
     @Nullable BlockType getBlockType(@NotNull NamespacedKey name);
 
+    /**
+     * Returns block type with given numeric id, ids are assigned to the block
+     * types once they're registered and stay the same even if the block
+     * type is removed.
+     * @param id id of the block type
+     * @return block type with given id
+     */
+    @Nullable BlockType getBlockType(int id);
+
+    /**
+     * Returns numeric id of the block type.
+     * @param blockType block type
+     * @return id of the block type, -1 if the block type has never been registered
+     */
+    int getBlockId(@NotNull BlockType blockType);
+
     /**
      * @return unmodifiable set of all block types registered in this manager
      */
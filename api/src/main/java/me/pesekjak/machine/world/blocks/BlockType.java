@@ -114,6 +114,13 @@ public interface BlockType {
          */
         boolean isDynamicShape();
 
+        /**
+         * World blocks of stateful block types are kept in memory as long as
+         * they exist, other world blocks are created only when they're requested.
+         * @return if the world blocks of the block type carry their own state
+         */
+        boolean isStateful();
+
         // TODO sound
 
     }
@@ -0,0 +1,60 @@
+package me.pesekjak.machine.world.generation;
+
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.world.blocks.BlockType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Represents a single section of a chunk that is being generated,
+ * blocks are written to the section as a whole instead of one by one.
+ * <p>
+ * Coordinates used by the unit are relative to the unit, size of the unit is
+ * {@link Chunk#CHUNK_SIZE_X} x {@link Chunk#CHUNK_SECTION_SIZE} x {@link Chunk#CHUNK_SIZE_Z}.
+ * Only stateful block types are notified about the creation of the generated blocks.
+ */
+public interface GenerationUnit {
+
+    /**
+     * @return x coordinate of the chunk that is being generated
+     */
+    int getChunkX();
+
+    /**
+     * @return z coordinate of the chunk that is being generated
+     */
+    int getChunkZ();
+
+    /**
+     * @return y coordinate of the lowest blocks of the unit in the world
+     */
+    int getBottom();
+
+    /**
+     * Fills the whole unit with single block type.
+     * @param blockType block type to fill the unit with
+     */
+    void fill(@NotNull BlockType blockType);
+
+    /**
+     * Changes all blocks of the unit using supplier.
+     * @param supplier supplier for all blocks of the unit
+     */
+    void setAll(@NotNull BlockSupplier supplier);
+
+    /**
+     * Supplies block types for the positions in a generation unit.
+     */
+    @FunctionalInterface
+    interface BlockSupplier {
+
+        /**
+         * @param x x coordinate relative to the unit
+         * @param y y coordinate relative to the unit
+         * @param z z coordinate relative to the unit
+         * @return block type at given coordinates
+         */
+        @NotNull BlockType get(int x, int y, int z);
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package me.pesekjak.machine.world.generation;
 
+import me.pesekjak.machine.chunk.Chunk;
 import me.pesekjak.machine.server.ServerProperty;
 import me.pesekjak.machine.world.BlockPosition;
 import me.pesekjak.machine.world.blocks.BlockType;
@@ -17,4 +18,17 @@ public interface Generator extends ServerProperty {
      */
     @NotNull BlockType generate(@NotNull BlockPosition position);
 
+    /**
+     * Generates the blocks of a single generation unit, by default every block
+     * is generated using {@link #generate(BlockPosition)}, generators should override
+     * this to fill whole units at once where possible.
+     * @param unit unit to generate
+     */
+    default void generate(@NotNull GenerationUnit unit) {
+        final int worldX = unit.getChunkX() * Chunk.CHUNK_SIZE_X;
+        final int worldZ = unit.getChunkZ() * Chunk.CHUNK_SIZE_Z;
+        final int bottom = unit.getBottom();
+        unit.setAll((x, y, z) -> generate(new BlockPosition(worldX + x, bottom + y, worldZ + z)));
+    }
+
 }
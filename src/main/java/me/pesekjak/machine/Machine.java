@@ -58,7 +58,7 @@ public class Machine implements Server {
     public static final String SERVER_BRAND = "Machine";
     public static final String SERVER_IMPLEMENTATION_VERSION = "1.19.2";
     public static final int SERVER_IMPLEMENTATION_PROTOCOL = 760;
-    public static final int DEFAULT_TPS = 20;
+    public static final int DEFAULT_TPS = Scheduler.DEFAULT_TPS;
 
     public static final ClassLoader CLASS_LOADER = Machine.class.getClassLoader();
     public static final String PACKAGE = "me.pesekjak.machine";
@@ -115,6 +115,8 @@ public class Machine implements Server {
 
     @Getter
     protected World defaultWorld;
+    @Getter
+    protected AutoSaver autoSaver;
 
     static {
         Factories.BUFFER_FACTORY = FriendlyByteBuf::new;
@@ -147,6 +149,7 @@ public class Machine implements Server {
         console.info("Loading Machine Server on Minecraft " + SERVER_IMPLEMENTATION_VERSION);
         scheduler = new Scheduler(4);
         exceptionHandler = new ExceptionHandlerImpl(this);
+        scheduler.setExceptionHandler(exceptionHandler::handle);
 
         // Setting up server properties
         File propertiesFile = new File(ServerPropertiesImpl.PROPERTIES_FILE_NAME);
@@ -161,6 +164,7 @@ public class Machine implements Server {
             System.exit(2);
         }
         console.info("Loaded server properties");
+        ZLib.setCompressionLevel(properties.getCompressionLevel());
 
         // Checking if the port in the properties in empty
         if (!NetworkUtils.available(properties.getServerPort())) {
@@ -266,6 +270,10 @@ public class Machine implements Server {
         }
         console.info("Loaded all server worlds");
 
+        autoSaver = new AutoSaver(this, properties.getRegionSaveThreads());
+        if(properties.getAutosavePeriod() > 0)
+            autoSaver.start(properties.getAutosavePeriod() * 1000L);
+
         // TODO Implement biomes json
         biomeManager = BiomeManagerImpl.createDefault(this);
 
@@ -300,7 +308,8 @@ public class Machine implements Server {
 
         running = true;
         console.info("Server loaded in " + (System.currentTimeMillis() - start) + "ms");
-        scheduler.run(); // blocks the thread
+        scheduler.setOverloadHandler(skipped -> console.warning("Can't keep up! Is the server overloaded? Skipping " + skipped + " ticks"));
+        scheduler.run(getTps()); // blocks the thread
 
         shutdown();
     }
@@ -345,13 +354,25 @@ public class Machine implements Server {
         } catch (Exception ignored) { }
         console.info("Connection has been closed");
         console.info("Saving worlds...");
+        if(autoSaver != null) {
+            try {
+                autoSaver.save().join(); // regions of all server worlds are written in parallel
+                autoSaver.close();
+            } catch (Exception exception) {
+                exceptionHandler.handle(exception);
+            }
+        }
         for(World world : worldManager.getWorlds()) {
             try {
-                world.save();
+                if(!(world instanceof ServerWorld))
+                    world.save();
+                else if(world.isLoaded())
+                    world.unload(); // saves the changes since the background save and closes the region files
             } catch (Exception exception) {
                 exceptionHandler.handle(exception);
             }
         }
+        ZLib.close();
         console.info("Server has been stopped");
         System.exit(0);
     }
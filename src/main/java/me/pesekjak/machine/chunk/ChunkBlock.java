@@ -0,0 +1,65 @@
+package me.pesekjak.machine.chunk;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import me.pesekjak.machine.world.BlockData;
+import me.pesekjak.machine.world.BlockPosition;
+import me.pesekjak.machine.world.World;
+import me.pesekjak.machine.world.blocks.BlockType;
+import me.pesekjak.machine.world.blocks.BlockVisual;
+import me.pesekjak.machine.world.blocks.WorldBlock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * World block without its own state, it's a view of the palettes of
+ * the chunk the block is in and is created only when it's requested.
+ * The block is also its own visual.
+ */
+@EqualsAndHashCode
+@ToString
+class ChunkBlock implements WorldBlock, BlockVisual {
+
+    @ToString.Exclude
+    private final @NotNull DynamicChunk chunk;
+    @Getter
+    private final @NotNull BlockType blockType;
+    private final int x, y, z;
+
+    ChunkBlock(@NotNull DynamicChunk chunk, @NotNull BlockType blockType, int x, int y, int z) {
+        this.chunk = chunk;
+        this.blockType = blockType;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    @Override
+    public @NotNull BlockPosition getPosition() {
+        return new BlockPosition(
+                chunk.getChunkX() * Chunk.CHUNK_SIZE_X + x,
+                chunk.getBottom() + y,
+                chunk.getChunkZ() * Chunk.CHUNK_SIZE_Z + z);
+    }
+
+    @Override
+    public @NotNull World getWorld() {
+        return chunk.getWorld();
+    }
+
+    @Override
+    public @NotNull BlockVisual getVisual() {
+        return this;
+    }
+
+    @Override
+    public @NotNull BlockData getBlockData() {
+        return BlockData.getBlockData(chunk.getBlockDataId(x, y, z));
+    }
+
+    @Override
+    public void setBlockData(@NotNull BlockData blockData) {
+        chunk.setBlockDataId(x, y, z, blockData.getId());
+    }
+
+}
@@ -0,0 +1,42 @@
+package me.pesekjak.machine.chunk;
+
+import me.pesekjak.machine.chunk.palette.PackedPalette;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+
+/**
+ * Copy of the sections of a chunk that changed since the chunk has been
+ * saved last time, so the chunk can be written while it keeps changing.
+ * @param chunk chunk the snapshot has been taken of
+ * @param sections indices of the changed sections
+ * @param blockTypes packed block type ids of the sections by their index,
+ *                   null for sections that didn't change
+ * @param skyLight sky light of the sections by their index, null for sections that didn't change
+ * @param blockLight block light of the sections by their index, null for sections that didn't change
+ */
+public record ChunkSnapshot(@NotNull DynamicChunk chunk,
+                            @NotNull BitSet sections,
+                            @Nullable PackedPalette @NotNull [] blockTypes,
+                            byte @Nullable [] @NotNull [] skyLight,
+                            byte @Nullable [] @NotNull [] blockLight) {
+
+    /**
+     * @return number of bytes of the packed block data and light in the snapshot
+     */
+    public long size() {
+        long size = 0;
+        for(PackedPalette palette : blockTypes) {
+            if(palette == null) continue;
+            size += (long) palette.palette().length * Integer.BYTES;
+            if(palette.data() != null) size += (long) palette.data().length * Long.BYTES;
+        }
+        for(byte[] light : skyLight)
+            if(light != null) size += light.length;
+        for(byte[] light : blockLight)
+            if(light != null) size += light.length;
+        return size;
+    }
+
+}
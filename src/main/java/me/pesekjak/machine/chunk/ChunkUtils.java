@@ -66,6 +66,28 @@ public class ChunkUtils {
         return chunkXZ >> 5;
     }
 
+    /**
+     * Converts a chunk coordinate to a coordinate of the chunk
+     * in the region it's in.
+     * <p>
+     * Example: 5 -> 5; -1 -> 31; 32 -> 0
+     * @param chunkXZ chunk coordinate
+     * @return region relative coordinate of the chunk
+     */
+    public static int getRegionRelativeCoordinate(int chunkXZ) {
+        return chunkXZ & 0x1F;
+    }
+
+    /**
+     * Creates unique key for a chunk at given coordinates.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return key of the chunk
+     */
+    public static long getChunkKey(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+    }
+
     /**
      * Gets the block index of a position.
      * @param x x
@@ -1,18 +1,27 @@
 package me.pesekjak.machine.chunk;
 
+import lombok.AccessLevel;
+import lombok.Getter;
 import me.pesekjak.machine.chunk.data.ChunkData;
 import me.pesekjak.machine.chunk.data.LightData;
+import me.pesekjak.machine.chunk.palette.AdaptivePalette;
+import me.pesekjak.machine.chunk.palette.PackedPalette;
+import me.pesekjak.machine.chunk.palette.Palette;
 import me.pesekjak.machine.entities.Entity;
 import me.pesekjak.machine.entities.Player;
 import me.pesekjak.machine.network.packets.out.play.PacketPlayOutChunkData;
 import me.pesekjak.machine.network.packets.out.play.PacketPlayOutUnloadChunk;
 import me.pesekjak.machine.network.packets.out.play.PacketPlayOutUpdateLight;
+import me.pesekjak.machine.server.schedule.Scheduler;
 import me.pesekjak.machine.utils.FriendlyByteBuf;
+import me.pesekjak.machine.utils.NamespacedKey;
 import me.pesekjak.machine.utils.math.MathUtils;
 import me.pesekjak.machine.world.BlockPosition;
 import me.pesekjak.machine.world.World;
 import me.pesekjak.machine.world.biomes.Biome;
 import me.pesekjak.machine.world.blocks.*;
+import me.pesekjak.machine.world.generation.GenerationUnit;
+import me.pesekjak.machine.world.generation.Generator;
 import mx.kenzie.nbt.NBTCompound;
 import mx.kenzie.nbt.NBTLongArray;
 import org.jetbrains.annotations.NotNull;
@@ -20,21 +29,63 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Chunk that can change individual blocks and biomes at any time.
+ * <p>
+ * Block types are stored as ids in the palettes of the sections, world
+ * block instances are kept only for stateful blocks, other blocks are
+ * views of the palettes created once they're requested.
+ * <p>
+ * The encoded chunk packet is cached and shared by all players the chunk
+ * is sent to, once the blocks or biomes of the chunk change, the cached packet
+ * is rebuilt asynchronously from copies of the sections. Sections changed since
+ * the chunk has been saved last time are marked as dirty.
+ * <p>
+ * Copies of the chunk share the sections with the original chunk, a shared
+ * section is cloned by the chunk changing it before the change, so a chunk copied
+ * many times takes memory of a single chunk and the sections its copies changed.
+ * Changes made directly to the palettes of the sections aren't tracked and
+ * bypass the copy-on-write of the shared sections.
+ * <p>
+ * Changes of the sections and their snapshots are done while holding the lock
+ * of the sections, so a snapshot never sees a palette that is being resized
+ * and no change can be lost between its dirty section being taken and packed.
  */
 public class DynamicChunk extends WorldChunk {
 
-    private final Map<Integer, WorldBlock> blocks = new ConcurrentHashMap<>();
+    /**
+     * Delay before the chunk packet is rebuilt after a change, changes
+     * done during the delay are rebuilt together.
+     */
+    private static final long PACKET_REBUILD_DELAY = 50;
+    /**
+     * Block type of the blocks that have never been set, stored
+     * with the reserved id 0 in the block type palettes.
+     */
+    private static final NamespacedKey AIR = NamespacedKey.minecraft("air");
+
+    private final Map<Integer, WorldBlock> statefulBlocks = new ConcurrentHashMap<>();
     private final List<SectionImpl> sections = new ArrayList<>();
+    private final @NotNull BlockManager blockManager;
 
+    @Getter(AccessLevel.PACKAGE)
     private final int bottom;
     private final int height;
 
+    private final AtomicInteger version = new AtomicInteger();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+    private volatile @Nullable CachedPacket cachedPacket;
+    private final BitSet dirtySections = new BitSet();
+    private final BitSet sharedSections = new BitSet();
+    private final Object sectionLock = new Object();
+
     public DynamicChunk(@NotNull World world, int chunkX, int chunkZ) {
         super(world, chunkX, chunkZ);
         if(world.getManager() == null) throw new IllegalStateException("The world has to have a manager");
+        blockManager = server.getBlockManager();
         bottom = world.getDimensionType().getMinY();
         height = world.getDimensionType().getHeight();
         for(int i = 0; i < height / 16; i++)
@@ -43,31 +94,114 @@ public class DynamicChunk extends WorldChunk {
 
     @Override
     public @NotNull WorldBlock getBlock(int x, int y, int z) {
-        return blocks.get(ChunkUtils.getBlockIndex(x, y, z));
+        final WorldBlock stateful = statefulBlocks.get(ChunkUtils.getBlockIndex(x, y, z));
+        if(stateful != null) return stateful;
+        return new ChunkBlock(this, getStoredBlockType(getStoredBlockTypeId(x, y, z)), x, y, z);
+    }
+
+    /**
+     * @param x x coordinate of the block in the chunk
+     * @param y y coordinate of the block in the chunk
+     * @param z z coordinate of the block in the chunk
+     * @return id of the block type stored at given coordinates, 0 if the block has never been set
+     */
+    private int getStoredBlockTypeId(int x, int y, int z) {
+        return sections.get(y >> 4).getBlockTypePalette().get(
+                ChunkUtils.getSectionRelativeCoordinate(x),
+                ChunkUtils.getSectionRelativeCoordinate(y),
+                ChunkUtils.getSectionRelativeCoordinate(z));
+    }
+
+    /**
+     * Returns block type stored in the block type palettes with given id,
+     * blocks that have never been set and blocks of removed block types are air.
+     * @param id id of the block type
+     * @return block type with given id
+     */
+    private @NotNull BlockType getStoredBlockType(int id) {
+        BlockType blockType = blockManager.getBlockType(id);
+        if(blockType == null) blockType = blockManager.getBlockType(AIR);
+        if(blockType == null)
+            throw new IllegalStateException("Block type " + AIR + " isn't registered");
+        return blockType;
     }
 
     @Override
     public @NotNull WorldBlock setBlock(int x, int y, int z, @NotNull BlockType blockType, @Nullable BlockType.CreateReason reason, @Nullable BlockType.DestroyReason replaceReason, @Nullable Entity source) {
-        final WorldBlock previous = getBlock(x, y, z);
-        if(previous != null) // TODO this can happen but shouldn't, fix
-            previous.getBlockType().destroy(previous, replaceReason != null ? replaceReason : BlockTypeImpl.DestroyReason.OTHER, null);
         final int index = ChunkUtils.getBlockIndex(x, y, z);
-        BlockPosition position = ChunkUtils.getBlockPosition(index, chunkX, chunkZ);
-        position = position.withY(position.getY() + bottom); // offset from bottom
-        WorldBlockImpl block = new WorldBlockImpl(blockType, position, world);
+        WorldBlock previous = statefulBlocks.get(index);
+        if(previous == null) {
+            final int previousId = getStoredBlockTypeId(x, y, z);
+            // blocks that have never been set have nothing to destroy
+            if(previousId != 0) previous = new ChunkBlock(this, getStoredBlockType(previousId), x, y, z);
+        }
+        if(previous != null)
+            previous.getBlockType().destroy(previous, replaceReason != null ? replaceReason : BlockTypeImpl.DestroyReason.OTHER, null);
+        final int id = blockManager.getBlockId(blockType);
+        final boolean stateful = id == -1 || blockType.getProperties().isStateful(); // unregistered block types can't be stored in the palette
+        final WorldBlock block;
+        if(stateful) {
+            final BlockPosition position = new BlockPosition(
+                    chunkX * Chunk.CHUNK_SIZE_X + x,
+                    bottom + y,
+                    chunkZ * Chunk.CHUNK_SIZE_Z + z);
+            block = new WorldBlockImpl(blockType, position, world);
+        } else {
+            block = new ChunkBlock(this, blockType, x, y, z);
+        }
+        final int dataId = stateful
+                ? block.getVisual().getBlockData().getId()
+                : blockType.getVisualizer().create(block).getBlockData().getId();
+        synchronized (sectionLock) {
+            final SectionImpl section = getWritableSection(y >> 4);
+            section.getBlockTypePalette().set(
+                    ChunkUtils.getSectionRelativeCoordinate(x),
+                    ChunkUtils.getSectionRelativeCoordinate(y),
+                    ChunkUtils.getSectionRelativeCoordinate(z),
+                    Math.max(id, 0));
+            if(stateful) statefulBlocks.put(index, block);
+            else statefulBlocks.remove(index);
+            setBlockDataId(x, y, z, dataId);
+        }
         block.getBlockType().create(block, reason != null ? reason : BlockTypeImpl.CreateReason.OTHER, source);
-        setVisual(x, y, z, block.getVisual());
-        blocks.put(index, block);
         return block;
     }
 
     @Override
     public void setVisual(int x, int y, int z, @NotNull BlockVisual visual) {
-        getSectionAt(y).getBlockPalette().set(
+        setBlockDataId(x, y, z, visual.getBlockData().getId());
+    }
+
+    /**
+     * @param x x coordinate of the block in the chunk
+     * @param y y coordinate of the block in the chunk
+     * @param z z coordinate of the block in the chunk
+     * @return id of the block data at given coordinates
+     */
+    int getBlockDataId(int x, int y, int z) {
+        return getSectionAt(y).getBlockPalette().get(
                 ChunkUtils.getSectionRelativeCoordinate(x),
                 ChunkUtils.getSectionRelativeCoordinate(y),
-                ChunkUtils.getSectionRelativeCoordinate(z),
-                visual.getBlockData().getId());
+                ChunkUtils.getSectionRelativeCoordinate(z));
+    }
+
+    /**
+     * Changes the block data at given coordinates.
+     * @param x x coordinate of the block in the chunk
+     * @param y y coordinate of the block in the chunk
+     * @param z z coordinate of the block in the chunk
+     * @param id id of the new block data
+     */
+    void setBlockDataId(int x, int y, int z, int id) {
+        synchronized (sectionLock) {
+            getWritableSection(y >> 4).getBlockPalette().set(
+                    ChunkUtils.getSectionRelativeCoordinate(x),
+                    ChunkUtils.getSectionRelativeCoordinate(y),
+                    ChunkUtils.getSectionRelativeCoordinate(z),
+                    id);
+            markDirty(y >> 4);
+        }
+        invalidatePacket();
     }
 
     @Override
@@ -85,8 +219,19 @@ public class DynamicChunk extends WorldChunk {
 
     @Override
     public void setBiome(int x, int y, int z, @NotNull Biome biome) {
-        final Section section = getSectionAt(y);
-        section.getBiomePalette().set(x / 4, y / 4, z / 4, biome.getId());
+        synchronized (sectionLock) {
+            final Section section = getWritableSection(y >> 4);
+            section.getBiomePalette().set(x / 4, y / 4, z / 4, biome.getId());
+            markDirty(y >> 4);
+        }
+        invalidatePacket();
+    }
+
+    @Override
+    public void generate(@NotNull Generator generator) {
+        for(int i = 0; i < sections.size(); i++)
+            generator.generate(new SectionUnit(i));
+        invalidatePacket();
     }
 
     @Override
@@ -102,7 +247,7 @@ public class DynamicChunk extends WorldChunk {
 
     @Override
     public void sendChunk(@NotNull Player player) {
-        player.sendPacket(createChunkPacket());
+        player.sendPacket(getChunkPacket());
     }
 
     @Override
@@ -113,25 +258,266 @@ public class DynamicChunk extends WorldChunk {
     @Override
     public @NotNull WorldChunk copy(@NotNull World world, int chunkX, int chunkZ) {
         DynamicChunk copy = new DynamicChunk(world, chunkX, chunkZ);
-        for(int i : blocks.keySet())
-            copy.blocks.put(i, blocks.get(i));
-        for(int i = 0; i < sections.size(); i++)
-            copy.sections.set(i, sections.get(i));
+        copy.statefulBlocks.putAll(statefulBlocks);
+        synchronized (sectionLock) {
+            for(int i = 0; i < sections.size(); i++)
+                copy.sections.set(i, sections.get(i));
+            sharedSections.set(0, sections.size());
+        }
+        copy.sharedSections.set(0, sections.size());
+        copy.markDirty(0, sections.size());
+        copy.invalidatePacket();
+        // the copy has the same sections, the frozen packet can be shared as well
+        final CachedPacket cached = cachedPacket;
+        if(cached != null && cached.version() == version.get() && chunkX == this.chunkX && chunkZ == this.chunkZ)
+            copy.cachedPacket = new CachedPacket(copy.version.get(), cached.packet());
         return copy;
     }
 
     @Override
     public void reset() {
-        blocks.clear();
-        sections.clear();
-        for(int i = 0; i < height / 16; i++)
-            sections.add(new SectionImpl());
+        statefulBlocks.clear();
+        synchronized (sectionLock) {
+            sections.clear();
+            for(int i = 0; i < height / 16; i++)
+                sections.add(new SectionImpl());
+            sharedSections.clear();
+            markDirty(0, sections.size());
+        }
+        invalidatePacket();
+    }
+
+    /**
+     * @return whether the chunk changed since it has been saved last time
+     */
+    public boolean isDirty() {
+        synchronized (dirtySections) {
+            return !dirtySections.isEmpty();
+        }
+    }
+
+    /**
+     * Returns indices of all sections that changed since the last call
+     * and marks them as saved.
+     * @return indices of the changed sections
+     */
+    public @NotNull BitSet takeDirtySections() {
+        synchronized (dirtySections) {
+            final BitSet dirty = (BitSet) dirtySections.clone();
+            dirtySections.clear();
+            return dirty;
+        }
+    }
+
+    /**
+     * Marks sections as changed, used when the sections taken by
+     * {@link #takeDirtySections()} failed to save.
+     * @param sections indices of the sections
+     */
+    public void markDirty(@NotNull BitSet sections) {
+        synchronized (dirtySections) {
+            dirtySections.or(sections);
+        }
+    }
+
+    /**
+     * Takes the sections that changed since the last save and copies their packed
+     * block types and light, the sections are marked as saved. The palettes of the
+     * changed sections are compacted first, which is deferred until then so sending
+     * the chunk never repacks them. Can be called from any thread, changes of the
+     * sections wait until the snapshot is taken.
+     * @return snapshot of the changed sections, null if no section changed
+     */
+    public @Nullable ChunkSnapshot takeSnapshot() {
+        synchronized (sectionLock) {
+            final BitSet dirty = takeDirtySections();
+            if(dirty.isEmpty()) return null;
+            compactSections(dirty);
+            final PackedPalette[] blockTypes = new PackedPalette[sections.size()];
+            final byte[][] skyLight = new byte[sections.size()][];
+            final byte[][] blockLight = new byte[sections.size()][];
+            for(int section = dirty.nextSetBit(0); section >= 0; section = dirty.nextSetBit(section + 1)) {
+                blockTypes[section] = getPackedSection(section);
+                // light arrays are only ever replaced, never modified, sharing them is safe
+                skyLight[section] = sections.get(section).getSkyLight();
+                blockLight[section] = sections.get(section).getBlockLight();
+            }
+            return new ChunkSnapshot(this, dirty, blockTypes, skyLight, blockLight);
+        }
+    }
+
+    /**
+     * Replaces the blocks of a section with packed block type ids, each block type of
+     * the local palette is resolved only once. Stateless block types are stored without
+     * creating world blocks, stateful block types are set one by one.
+     * @param section index of the section
+     * @param packed packed block type ids
+     * @param reason reason of the creation of stateful blocks
+     */
+    public void setPackedSection(int section, @NotNull PackedPalette packed, @NotNull BlockType.CreateReason reason) {
+        new SectionUnit(section).setPacked(packed, reason);
+        invalidatePacket();
+    }
+
+    /**
+     * Returns packed block type ids of a section, block types that aren't registered
+     * are stored as 0.
+     * @param section index of the section
+     * @return packed block type ids of the section
+     */
+    public @NotNull PackedPalette getPackedSection(int section) {
+        synchronized (sectionLock) {
+            return adaptive(sections.get(section).getBlockTypePalette()).getPacked();
+        }
+    }
+
+    /**
+     * Replaces the light of a section.
+     * @param section index of the section
+     * @param skyLight new sky light of the section
+     * @param blockLight new block light of the section
+     */
+    public void setSectionLight(int section, byte @NotNull [] skyLight, byte @NotNull [] blockLight) {
+        synchronized (sectionLock) {
+            final SectionImpl sectionImpl = getWritableSection(section);
+            sectionImpl.setSkyLight(skyLight);
+            sectionImpl.setBlockLight(blockLight);
+            markDirty(section);
+        }
+        invalidatePacket();
+    }
+
+    /**
+     * Compacts the palettes of sections that can be packed with fewer bits per entry,
+     * sections shared with other chunks are skipped. Has to be called while holding
+     * the lock of the sections.
+     * @param sections indices of the sections to compact
+     */
+    private void compactSections(@NotNull BitSet sections) {
+        for(int section = sections.nextSetBit(0); section >= 0; section = sections.nextSetBit(section + 1)) {
+            if(sharedSections.get(section)) continue;
+            final SectionImpl sectionImpl = this.sections.get(section);
+            adaptive(sectionImpl.getBlockPalette()).compact();
+            adaptive(sectionImpl.getBiomePalette()).compact();
+            adaptive(sectionImpl.getBlockTypePalette()).compact();
+        }
     }
 
     /**
+     * Returns section that can be changed, if the section is shared with
+     * another chunk, it's replaced with its clone first. Has to be called
+     * while holding the lock of the sections.
+     * @param section index of the section
+     * @return section that isn't shared with any other chunk
+     */
+    private @NotNull SectionImpl getWritableSection(int section) {
+        synchronized (sectionLock) {
+            if(!sharedSections.get(section)) return sections.get(section);
+            final SectionImpl clone = sections.get(section).clone();
+            sections.set(section, clone);
+            sharedSections.clear(section);
+            return clone;
+        }
+    }
+
+    /**
+     * Marks a section as changed.
+     * @param section index of the section
+     */
+    private void markDirty(int section) {
+        synchronized (dirtySections) {
+            dirtySections.set(section);
+        }
+    }
+
+    /**
+     * Marks a range of sections as changed.
+     * @param from index of the first section
+     * @param to index after the last section
+     */
+    private void markDirty(int from, int to) {
+        synchronized (dirtySections) {
+            dirtySections.set(from, to);
+        }
+    }
+
+    /**
+     * @param palette palette of the section
+     * @return palette as adaptive palette
+     */
+    private static @NotNull AdaptivePalette adaptive(@NotNull Palette palette) {
+        if(!(palette instanceof AdaptivePalette adaptivePalette))
+            throw new IllegalStateException("Palette of the section can't be packed");
+        return adaptivePalette;
+    }
+
+    /**
+     * Returns the cached chunk packet of this chunk, if the chunk changed
+     * since the packet has been cached, the packet is rebuilt.
+     * @return up-to-date chunk packet of this chunk
+     */
+    private @NotNull PacketPlayOutChunkData getChunkPacket() {
+        final CachedPacket cached = cachedPacket;
+        if(cached != null && cached.version() == version.get())
+            return cached.packet();
+        return rebuildPacket();
+    }
+
+    /**
+     * Creates new chunk packet and caches it for the current version of the chunk.
+     * The packet is encoded from a snapshot of the sections and its compressed
+     * encoding is built right away, so the threads sending it only copy the bytes.
+     * @return new chunk packet
+     */
+    private @NotNull PacketPlayOutChunkData rebuildPacket() {
+        final int version = this.version.get();
+        final PacketPlayOutChunkData packet = createChunkPacket(snapshotSections());
+        packet.freeze();
+        packet.getCompressedSize();
+        final CachedPacket cached = cachedPacket;
+        if(cached == null || cached.version() < version)
+            cachedPacket = new CachedPacket(version, packet);
+        return packet;
+    }
+
+    /**
+     * Marks the cached chunk packet as outdated, if the packet has been cached
+     * before, it's rebuilt asynchronously.
+     */
+    private void invalidatePacket() {
+        version.incrementAndGet();
+        if(cachedPacket == null || world.getManager() == null) return;
+        if(!rebuildScheduled.compareAndSet(false, true)) return;
+        Scheduler.task((input, session) -> {
+                    rebuildScheduled.set(false);
+                    final CachedPacket cached = cachedPacket;
+                    if(cached == null || cached.version() != version.get())
+                        rebuildPacket();
+                    return null;
+                })
+                .async()
+                .delay(PACKET_REBUILD_DELAY)
+                .run(world.getManager().getServer().getScheduler());
+    }
+
+    /**
+     * Copies the sections of this chunk while holding the lock of the sections,
+     * the copies can be encoded while the chunk changes.
+     * @return copies of the sections
+     */
+    private @NotNull List<SectionImpl> snapshotSections() {
+        synchronized (sectionLock) {
+            final List<SectionImpl> snapshot = new ArrayList<>(sections.size());
+            for(SectionImpl section : sections) snapshot.add(section.clone());
+            return snapshot;
+        }
+    }
+
+    /**
+     * @param sections sections of this chunk
      * @return chunk data of this chunk
      */
-    private @NotNull ChunkData createChunkData() {
+    private @NotNull ChunkData createChunkData(@NotNull List<SectionImpl> sections) {
         int[] motionBlocking = new int[16 * 16];
         int[] worldSurface = new int[16 * 16];
         for (int x = 0; x < 16; x++) {
@@ -155,9 +541,10 @@ public class DynamicChunk extends WorldChunk {
     }
 
     /**
+     * @param sections sections of this chunk
      * @return light data of this chunk
      */
-    private @NotNull LightData createLightData() {
+    private @NotNull LightData createLightData(@NotNull List<SectionImpl> sections) {
         BitSet skyMask = new BitSet();
         BitSet blockMask = new BitSet();
         BitSet emptySkyMask = new BitSet();
@@ -189,19 +576,198 @@ public class DynamicChunk extends WorldChunk {
     }
 
     /**
+     * @param sections sections of this chunk
      * @return chunk packet of this chunk
      */
-    private @NotNull PacketPlayOutChunkData createChunkPacket() {
+    private @NotNull PacketPlayOutChunkData createChunkPacket(@NotNull List<SectionImpl> sections) {
         return new PacketPlayOutChunkData(chunkX, chunkZ,
-                createChunkData(),
-                createLightData());
+                createChunkData(sections),
+                createLightData(sections));
     }
 
     /**
      * @return light packet of this chunk
      */
     private @NotNull PacketPlayOutUpdateLight createLightPacket() {
-        return new PacketPlayOutUpdateLight(chunkX, chunkZ, createLightData());
+        return new PacketPlayOutUpdateLight(chunkX, chunkZ, createLightData(snapshotSections()));
+    }
+
+    /**
+     * Generation unit writing directly to the palettes of a section. Stateless
+     * block types are stored without creating world blocks and their visual is
+     * created only once per block type for the whole unit, stateful and unregistered
+     * block types are set one by one. The palettes are written while holding the lock
+     * of the sections.
+     */
+    private class SectionUnit implements GenerationUnit {
+
+        private static final int SIZE = CHUNK_SIZE_X * CHUNK_SECTION_SIZE * CHUNK_SIZE_Z;
+
+        private final int index;
+        private final Map<BlockType, GeneratedType> types = new IdentityHashMap<>();
+
+        SectionUnit(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getChunkX() {
+            return chunkX;
+        }
+
+        @Override
+        public int getChunkZ() {
+            return chunkZ;
+        }
+
+        @Override
+        public int getBottom() {
+            return bottom + index * CHUNK_SECTION_SIZE;
+        }
+
+        @Override
+        public void fill(@NotNull BlockType blockType) {
+            final GeneratedType type = resolve(blockType);
+            if(type.stateful()) {
+                setAll((x, y, z) -> blockType);
+                return;
+            }
+            synchronized (sectionLock) {
+                final SectionImpl section = getWritableSection(index);
+                clearStateful();
+                section.getBlockTypePalette().fill(type.id());
+                section.getBlockPalette().fill(type.dataId());
+                markDirty(index);
+            }
+        }
+
+        @Override
+        public void setAll(@NotNull BlockSupplier supplier) {
+            final GeneratedType[] generated = new GeneratedType[SIZE];
+            GeneratedType first = null;
+            boolean uniform = true, stateful = false;
+            for(int y = 0; y < CHUNK_SECTION_SIZE; y++) {
+                for(int z = 0; z < CHUNK_SIZE_Z; z++) {
+                    for(int x = 0; x < CHUNK_SIZE_X; x++) {
+                        final GeneratedType type = resolve(supplier.get(x, y, z));
+                        generated[index(x, y, z)] = type;
+                        if(first == null) first = type;
+                        else if(type != first) uniform = false;
+                        stateful |= type.stateful();
+                    }
+                }
+            }
+            synchronized (sectionLock) {
+                final SectionImpl section = getWritableSection(index);
+                clearStateful();
+                if(uniform && !stateful) {
+                    section.getBlockTypePalette().fill(first.id());
+                    section.getBlockPalette().fill(first.dataId());
+                } else {
+                    section.getBlockTypePalette().setAll((x, y, z) -> generated[index(x, y, z)].id());
+                    section.getBlockPalette().setAll((x, y, z) -> generated[index(x, y, z)].dataId());
+                }
+                markDirty(index);
+            }
+            if(!stateful) return;
+            for(int i = 0; i < SIZE; i++) {
+                final GeneratedType type = generated[i];
+                if(!type.stateful()) continue;
+                setBlock(i & 0xF, index * CHUNK_SECTION_SIZE + (i >> 8), (i >> 4) & 0xF,
+                        type.blockType(), BlockType.CreateReason.GENERATED, null, null);
+            }
+        }
+
+        /**
+         * Replaces the blocks of this unit with packed block type ids, the block
+         * data palette shares the packed entries with a remapped local palette.
+         * @param packed packed block type ids
+         * @param reason reason of the creation of stateful blocks
+         */
+        void setPacked(@NotNull PackedPalette packed, @NotNull BlockType.CreateReason reason) {
+            final int[] palette = packed.palette();
+            final GeneratedType[] resolved = new GeneratedType[palette.length];
+            final int[] ids = new int[palette.length];
+            final int[] dataIds = new int[palette.length];
+            boolean stateful = false;
+            for(int i = 0; i < palette.length; i++) {
+                final BlockType blockType = blockManager.getBlockType(palette[i]);
+                if(blockType == null) continue;
+                final GeneratedType type = resolve(blockType);
+                resolved[i] = type;
+                ids[i] = type.id();
+                dataIds[i] = type.dataId();
+                stateful |= type.stateful();
+            }
+            synchronized (sectionLock) {
+                final SectionImpl section = getWritableSection(index);
+                clearStateful();
+                adaptive(section.getBlockTypePalette()).setPacked(new PackedPalette(ids, packed.data()));
+                adaptive(section.getBlockPalette()).setPacked(new PackedPalette(dataIds, packed.data()));
+                markDirty(index);
+            }
+            if(!stateful) return;
+            final int[] indices = packed.indices(SIZE);
+            for(int i = 0; i < SIZE; i++) {
+                final GeneratedType type = resolved[indices[i]];
+                if(type == null || !type.stateful()) continue;
+                setBlock(i & 0xF, index * CHUNK_SECTION_SIZE + (i >> 8), (i >> 4) & 0xF,
+                        type.blockType(), reason, null, null);
+            }
+        }
+
+        /**
+         * Resolves the ids of the block type used by this unit.
+         * @param blockType block type to resolve
+         * @return resolved block type
+         */
+        private @NotNull GeneratedType resolve(@NotNull BlockType blockType) {
+            GeneratedType type = types.get(blockType);
+            if(type != null) return type;
+            final int id = blockManager.getBlockId(blockType);
+            if(id == -1 || blockType.getProperties().isStateful()) {
+                type = new GeneratedType(blockType, 0, 0, true);
+            } else {
+                final ChunkBlock block = new ChunkBlock(DynamicChunk.this, blockType, 0, index * CHUNK_SECTION_SIZE, 0);
+                type = new GeneratedType(blockType, id, blockType.getVisualizer().create(block).getBlockData().getId(), false);
+            }
+            types.put(blockType, type);
+            return type;
+        }
+
+        /**
+         * Removes all stateful blocks in this unit.
+         */
+        private void clearStateful() {
+            if(statefulBlocks.isEmpty()) return;
+            statefulBlocks.keySet().removeIf(blockIndex -> blockIndex >> 8 >> CHUNK_SIZE_BITS == index);
+        }
+
+        /**
+         * @return index of the block in the unit
+         */
+        private static int index(int x, int y, int z) {
+            return y << 8 | z << 4 | x;
+        }
+
+    }
+
+    /**
+     * Block type resolved for a generation unit.
+     * @param blockType generated block type
+     * @param id id of the block type
+     * @param dataId id of the initial block data of the block type
+     * @param stateful whether the block type has to be set block by block
+     */
+    private record GeneratedType(@NotNull BlockType blockType, int id, int dataId, boolean stateful) {
+    }
+
+    /**
+     * Chunk packet cached for a version of the chunk.
+     * @param version version of the chunk the packet has been created for
+     * @param packet encoded chunk packet
+     */
+    private record CachedPacket(int version, @NotNull PacketPlayOutChunkData packet) {
     }
 
 }
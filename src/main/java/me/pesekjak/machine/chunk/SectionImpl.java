@@ -17,13 +17,17 @@ public class SectionImpl implements Section {
 
     private final @NotNull Palette blockPalette;
     private final @NotNull Palette biomePalette;
+    /**
+     * Palette of the block type ids, isn't sent to the clients.
+     */
+    private final @NotNull Palette blockTypePalette;
     @Setter
     private byte @NotNull [] skyLight;
     @Setter
     private byte @NotNull [] blockLight;
 
     public SectionImpl() {
-        this(AdaptivePalette.blocks(), AdaptivePalette.biomes(),
+        this(AdaptivePalette.blocks(), AdaptivePalette.biomes(), AdaptivePalette.blocks(),
                 new byte[0], new byte[0]);
     }
 
@@ -31,6 +35,7 @@ public class SectionImpl implements Section {
     public void clear() {
         this.blockPalette.fill(0);
         this.biomePalette.fill(0);
+        this.blockTypePalette.fill(0);
         this.skyLight = new byte[0];
         this.blockLight = new byte[0];
     }
@@ -38,7 +43,7 @@ public class SectionImpl implements Section {
     @SuppressWarnings("MethodDoesntCallSuperMethod")
     @Override
     public @NotNull SectionImpl clone() {
-        return new SectionImpl(blockPalette.clone(), biomePalette.clone(), skyLight.clone(), blockLight.clone());
+        return new SectionImpl(blockPalette.clone(), biomePalette.clone(), blockTypePalette.clone(), skyLight.clone(), blockLight.clone());
     }
 
     @Override
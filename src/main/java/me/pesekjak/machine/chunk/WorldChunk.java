@@ -1,6 +1,7 @@
 package me.pesekjak.machine.chunk;
 
 import lombok.Getter;
+import lombok.Setter;
 import me.pesekjak.machine.Server;
 import me.pesekjak.machine.world.World;
 import org.jetbrains.annotations.NotNull;
@@ -17,6 +18,7 @@ public abstract class WorldChunk implements Chunk {
     protected final int chunkX, chunkZ;
     protected final int minSection, maxSection;
 
+    @Setter
     protected volatile boolean loaded = true;
 
     public WorldChunk(@NotNull World world, int chunkX, int chunkZ) {
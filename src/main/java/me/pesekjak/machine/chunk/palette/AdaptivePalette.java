@@ -1,12 +1,8 @@
 package me.pesekjak.machine.chunk.palette;
 
 import me.pesekjak.machine.utils.ServerBuffer;
-import me.pesekjak.machine.utils.math.MathUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
-
 public class AdaptivePalette implements Palette {
 
     /**
@@ -96,6 +92,16 @@ public class AdaptivePalette implements Palette {
         flexiblePalette().replaceAll(function);
     }
 
+    @Override
+    public void replaceAll(int value, int newValue) {
+        final Palette currentPalette = palette;
+        if(currentPalette instanceof FilledPalette filledPalette) {
+            if(filledPalette.value == value) fill(newValue);
+            return;
+        }
+        currentPalette.replaceAll(value, newValue);
+    }
+
     @Override
     public int count() {
         return palette.count();
@@ -129,15 +135,71 @@ public class AdaptivePalette implements Palette {
 
     @Override
     public void write(@NotNull ServerBuffer buf) {
+        optimizedPalette().write(buf);
+    }
+
+    /**
+     * Replaces all values of this palette with packed entries, the values
+     * of the local palette are remapped only once for the whole palette.
+     * @param packed packed entries
+     */
+    public void setPacked(@NotNull PackedPalette packed) {
+        final int[] values = packed.palette();
+        if(values.length == 0)
+            throw new IllegalArgumentException("Packed palette has to have at least one value");
+        if(values.length == 1 || packed.data() == null) {
+            fill(values[0]);
+            return;
+        }
+        final int bitsPerEntry = PackedPalette.bitsPerEntry(values.length, defaultBitsPerEntry);
+        final FlexiblePalette newPalette = new FlexiblePalette(this, (byte) (bitsPerEntry > maxBitsPerEntry ? 15 : bitsPerEntry));
+        newPalette.setPacked(packed);
+        palette = newPalette;
+    }
+
+    /**
+     * Packs the values of this palette, the entries are packed with the lowest bits
+     * per entry able to represent the local palette (but at least the default bits
+     * per entry of this palette).
+     * @return packed values of this palette
+     */
+    public @NotNull PackedPalette getPacked() {
+        final Palette currentPalette = palette;
+        if(currentPalette instanceof FilledPalette filledPalette)
+            return new PackedPalette(new int[] {filledPalette.value}, null);
+        return ((FlexiblePalette) currentPalette).getPacked();
+    }
+
+    /**
+     * Checks whether the wrapped palette can be compacted, doesn't scan the entries.
+     * @return whether {@link #compact()} would repack the wrapped palette
+     */
+    public boolean canCompact() {
+        final Palette currentPalette = palette;
+        return currentPalette instanceof FlexiblePalette flexiblePalette
+                && (optimizedPalette() != currentPalette || flexiblePalette.canCompact());
+    }
+
+    /**
+     * Compacts the wrapped palette, converts it to FilledPalette if it contains
+     * only one value, otherwise repacks it with the lowest bits per entry able
+     * to represent its values. Palettes are never repacked when they're written,
+     * this should be called once there is time for it.
+     * @return whether the wrapped palette changed
+     */
+    public boolean compact() {
+        final Palette currentPalette = palette;
+        if(!(currentPalette instanceof FlexiblePalette flexiblePalette)) return false;
+        final boolean repacked = flexiblePalette.compact();
         final Palette optimized = optimizedPalette();
-        this.palette = optimized;
-        optimized.write(buf);
+        palette = optimized;
+        return repacked || optimized != currentPalette;
     }
 
     /**
-     * Optimizes the wrapped palette, either converts FlexiblePalette to
-     * FilledPalette if contains only one entry or resizes the FlexiblePalette
-     * if possible.
+     * Optimizes the wrapped palette, converts FlexiblePalette to FilledPalette
+     * if it contains only one value. Uses the tracked number of distinct values
+     * of the palette, so it doesn't scan the entries.
      * @return optimized palette
      */
     @NotNull Palette optimizedPalette() {
@@ -146,23 +208,12 @@ public class AdaptivePalette implements Palette {
         if(!(currentPalette instanceof FlexiblePalette flexiblePalette))
             return currentPalette;
 
-        final int count = flexiblePalette.count();
-        if (count == 0)
+        if (flexiblePalette.count() == 0)
             return new FilledPalette(dimension, 0);
 
-        final Set<Integer> entries = new LinkedHashSet<>(flexiblePalette.paletteToValueList.size());
-        flexiblePalette.getAll((x, y, z, value) -> entries.add(value));
-
-        final int currentBitsPerEntry = flexiblePalette.bitsPerEntry();
-        final int bitsPerEntry;
-
-        if (entries.size() == 1) {
-            return new FilledPalette(dimension, entries.iterator().next());
-        } else if (currentBitsPerEntry > defaultBitsPerEntry &&
-                (bitsPerEntry = MathUtils.bitsToRepresent(entries.size() - 1)) < currentBitsPerEntry) {
-            flexiblePalette.resize((byte) bitsPerEntry);
-            return flexiblePalette;
-        }
+        final int value = flexiblePalette.singleValue();
+        if (value != -1)
+            return new FilledPalette(dimension, value);
 
         return currentPalette;
     }
@@ -59,9 +59,14 @@ public class FilledPalette implements Palette {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void replaceAll(int value, int newValue) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public int count() {
-        return maxSize();
+        return value != 0 ? maxSize() : 0;
     }
 
     @Override
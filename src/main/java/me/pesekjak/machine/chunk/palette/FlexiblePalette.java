@@ -7,10 +7,17 @@ import org.antlr.v4.runtime.misc.IntegerList;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.BitSet;
 
 /**
  * Palette able to take any value anywhere.
+ * <p>
+ * Bulk operations work with whole longs of packed entries where possible, counting and
+ * replacing of values test all entries of a long at once, changes of bits per entry
+ * and bulk writes stream the entries without computing the position of each entry.
+ * <p>
+ * While the palette has a local palette, it keeps the number of entries referencing each
+ * palette index, so it knows how many distinct values it holds without scanning the entries.
  */
 public class FlexiblePalette implements Palette {
 
@@ -25,6 +32,16 @@ public class FlexiblePalette implements Palette {
     protected @NotNull IntegerList paletteToValueList;
     protected @NotNull IntObjectHashMap<Integer> valueToPaletteMap;
 
+    /**
+     * Number of entries referencing each palette index, not tracked if the
+     * palette stores the values directly.
+     */
+    protected int @NotNull [] references;
+    /**
+     * Number of palette indices referenced by at least one entry.
+     */
+    protected int distinctValues;
+
     protected FlexiblePalette(@NotNull AdaptivePalette adaptivePalette, byte bitsPerEntry) {
         this.adaptivePalette = adaptivePalette;
         this.bitsPerEntry = bitsPerEntry;
@@ -35,6 +52,9 @@ public class FlexiblePalette implements Palette {
 
         final int valuesPerLong = Long.SIZE / bitsPerEntry;
         values = new long[(maxSize() + valuesPerLong - 1) / valuesPerLong];
+        references = new int[hasPalette() ? maxPaletteSize(bitsPerEntry) : 1];
+        references[0] = maxSize();
+        distinctValues = 1;
     }
 
     protected FlexiblePalette(@NotNull AdaptivePalette adaptivePalette) {
@@ -80,6 +100,10 @@ public class FlexiblePalette implements Palette {
 
         final boolean currentAir = oldBlock == 0;
         if(currentAir != (value == 0)) count += currentAir ? 1 : -1;
+        if(oldBlock != value && hasPalette()) {
+            addReferences((int) oldBlock, -1);
+            addReferences(value, 1);
+        }
     }
 
     @Override
@@ -87,6 +111,7 @@ public class FlexiblePalette implements Palette {
         if(value == 0) {
             Arrays.fill(values, 0);
             count = 0;
+            resetReferences(0);
             return;
         }
         value = getPaletteIndex(value);
@@ -98,20 +123,21 @@ public class FlexiblePalette implements Palette {
             block |= (long) value << i * bitsPerEntry;
         Arrays.fill(values, block);
         count = maxSize();
+        resetReferences(value);
     }
 
     @Override
     public void setAll(@NotNull EntrySupplier supplier) {
-        int[] cache = WRITE_CACHE.get();
+        final int[] cache = WRITE_CACHE.get();
         final int dimension = dimension();
         int fillValue = -1;
         int count = 0;
         int index = 0;
 
-        for(int x = 0; x < dimension; x++) {
-            for(int y = 0; y < dimension; y++) {
-                for(int z = 0; z < dimension; z++) {
-                    int value = supplier.get(x, y, z);
+        for(int y = 0; y < dimension; y++) {
+            for(int z = 0; z < dimension; z++) {
+                for(int x = 0; x < dimension; x++) {
+                    final int value = supplier.get(x, y, z);
 
                     // Support for using fill except of updateAll if
                     // supplier returns constant value.
@@ -122,10 +148,7 @@ public class FlexiblePalette implements Palette {
                             fillValue = -2;
                     }
 
-                    if (value != 0) {
-                        value = getPaletteIndex(value);
-                        count++;
-                    }
+                    if (value != 0) count++;
                     cache[index++] = value;
                 }
             }
@@ -133,6 +156,7 @@ public class FlexiblePalette implements Palette {
 
         assert index == maxSize();
         if(fillValue < 0) {
+            toPaletteIndices(cache);
             updateAll(cache);
             this.count = count;
         } else {
@@ -148,19 +172,58 @@ public class FlexiblePalette implements Palette {
 
     @Override
     public void replaceAll(@NotNull EntryFunction function) {
-        int[] cache = WRITE_CACHE.get();
-        AtomicInteger arrayIndex = new AtomicInteger();
-        AtomicInteger count = new AtomicInteger();
-        getAll((x, y, z, value) -> {
-            final int newValue = function.apply(x, y, z, value);
-            final int index = arrayIndex.getPlain();
-            arrayIndex.setPlain(index + 1);
-            cache[index] = newValue != value ? getPaletteIndex(newValue) : value;
-            if(newValue != 0) count.setPlain(count.getPlain() + 1);
-        });
-        assert arrayIndex.getPlain() == maxSize();
+        final int[] cache = WRITE_CACHE.get();
+        final int size = maxSize();
+        final int dimensionMinus = dimension() - 1;
+        final int dimensionBitCount = MathUtils.bitsToRepresent(dimensionMinus);
+        final int shiftedDimensionBitCount = dimensionBitCount << 1;
+
+        PackedPalette.unpack(values, bitsPerEntry, size, cache);
+        if(hasPalette()) {
+            final int[] ids = paletteToValueList.toArray();
+            for(int index = 0; index < size; index++)
+                cache[index] = ids[cache[index]];
+        }
+        int count = 0;
+        for(int index = 0; index < size; index++) {
+            final int newValue = function.apply(
+                    index & dimensionMinus,
+                    index >> shiftedDimensionBitCount,
+                    index >> dimensionBitCount & dimensionMinus,
+                    cache[index]);
+            cache[index] = newValue;
+            if(newValue != 0) count++;
+        }
+        toPaletteIndices(cache);
         updateAll(cache);
-        this.count = count.getPlain();
+        this.count = count;
+    }
+
+    @Override
+    public void replaceAll(int value, int newValue) {
+        if(value == newValue) return;
+        if(hasPalette()) {
+            final Integer index = valueToPaletteMap.get(value);
+            if(index == null) return;
+            if(value != 0 && newValue != 0 && !valueToPaletteMap.containsKey(newValue)) {
+                // the value can be renamed in the palette without touching the entries
+                paletteToValueList.set(index, newValue);
+                valueToPaletteMap.remove(value);
+                valueToPaletteMap.put(newValue, index);
+                return;
+            }
+        } else if(value < 0 || value >>> bitsPerEntry != 0) {
+            return; // the value can't be stored in the palette
+        }
+        final int newIndex = getPaletteIndex(newValue); // the palette can resize
+        final int index = hasPalette() ? valueToPaletteMap.get(value) : value;
+        final int replaced = PackedPalette.replace(values, bitsPerEntry, maxSize(), index, newIndex);
+        if(value == 0) count += replaced;
+        else if(newValue == 0) count -= replaced;
+        if(replaced != 0 && hasPalette()) {
+            addReferences(index, -replaced);
+            addReferences(newIndex, replaced);
+        }
     }
 
     @Override
@@ -200,6 +263,7 @@ public class FlexiblePalette implements Palette {
             palette.valueToPaletteMap.put(i, valueToPaletteMap.get(i));
         palette.count = count;
         palette.bitsPerEntry = bitsPerEntry;
+        palette.references = references.clone();
         return palette;
     }
 
@@ -216,6 +280,97 @@ public class FlexiblePalette implements Palette {
             buf.writeLong(l);
     }
 
+    /**
+     * Replaces all values of this palette with packed entries. If the entries are packed
+     * with the same bits per entry as this palette, they are adopted as they are, otherwise
+     * each local palette index is remapped to an index of this palette only once.
+     * @param packed packed entries
+     */
+    void setPacked(@NotNull PackedPalette packed) {
+        final int[] palette = packed.palette();
+        final long[] data = packed.data();
+        final int size = maxSize();
+        if(data != null && canAdopt(packed)) {
+            paletteToValueList = new IntegerList(palette.length);
+            valueToPaletteMap = new IntObjectHashMap<>(palette.length);
+            for(int i = 0; i < palette.length; i++) {
+                paletteToValueList.add(palette[i]);
+                valueToPaletteMap.putIfAbsent(palette[i], (Integer) i);
+            }
+            values = data.clone();
+            count = PackedPalette.count(values, bitsPerEntry, size);
+            recountReferences();
+            return;
+        }
+
+        final int[] indices = packed.indices(size);
+        for(int value : palette) getPaletteIndex(value); // the palette can resize while it grows
+        final int[] remap = new int[palette.length];
+        for(int i = 0; i < palette.length; i++)
+            remap[i] = getPaletteIndex(palette[i]);
+
+        final int[] cache = WRITE_CACHE.get();
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            final int index = indices[i];
+            cache[i] = remap[index];
+            if(palette[index] != 0) count++;
+        }
+        updateAll(cache);
+        this.count = count;
+    }
+
+    /**
+     * Packs values of this palette with the lowest bits per entry able to represent
+     * all values of the local palette, but at least the default bits per entry.
+     * @return packed values of this palette
+     */
+    @NotNull PackedPalette getPacked() {
+        final int size = maxSize();
+        final int minBitsPerEntry = adaptivePalette.defaultBitsPerEntry;
+        final int[] ids = hasPalette() ? paletteToValueList.toArray() : null;
+        if(ids != null && ids.length == 1)
+            return new PackedPalette(ids, null);
+        if(ids != null && bitsPerEntry == PackedPalette.bitsPerEntry(ids.length, minBitsPerEntry))
+            return new PackedPalette(ids, values.clone());
+
+        // the palette is larger than it needs to be or there is no palette at all
+        final int[] entries = PackedPalette.unpack(values, bitsPerEntry, size);
+        final int[] remap = new int[1 << bitsPerEntry];
+        Arrays.fill(remap, -1);
+        final IntegerList localPalette = new IntegerList();
+        for(int i = 0; i < size; i++) {
+            final int entry = entries[i];
+            int index = remap[entry];
+            if(index == -1) {
+                index = remap[entry] = localPalette.size();
+                localPalette.add(ids != null ? ids[entry] : entry);
+            }
+            entries[i] = index;
+        }
+        if(localPalette.size() == 1)
+            return new PackedPalette(localPalette.toArray(), null);
+        return new PackedPalette(localPalette.toArray(),
+                PackedPalette.pack(entries, PackedPalette.bitsPerEntry(localPalette.size(), minBitsPerEntry)));
+    }
+
+    /**
+     * Checks whether packed entries can be adopted by this palette without being unpacked,
+     * palette index 0 has to be the only index of value 0.
+     * @param packed packed entries
+     * @return whether the entries can be adopted
+     */
+    private boolean canAdopt(@NotNull PackedPalette packed) {
+        final int[] palette = packed.palette();
+        final long[] data = packed.data();
+        if(!hasPalette() || data == null || data.length != values.length) return false;
+        if(packed.bitsPerEntry(maxSize()) != bitsPerEntry || palette.length > maxPaletteSize(bitsPerEntry)) return false;
+        if(palette[0] != 0) return false;
+        for(int i = 1; i < palette.length; i++)
+            if(palette[i] == 0) return false;
+        return true;
+    }
+
     /**
      * Accepts all values of the palette.
      * @param consumer consumer
@@ -256,7 +411,33 @@ public class FlexiblePalette implements Palette {
     }
 
     /**
-     * Updates all palette values.
+     * Replaces values with their palette indices. All values are added to the
+     * palette first, so the palette doesn't resize while the indices are assigned.
+     * @param entries values to replace with the palette indices
+     */
+    private void toPaletteIndices(int @NotNull [] entries) {
+        final int size = maxSize();
+        int last = 0;
+        for(int i = 0; i < size; i++) {
+            if(entries[i] == last) continue;
+            last = entries[i];
+            getPaletteIndex(last);
+        }
+        if(!hasPalette()) return;
+        last = 0;
+        int lastIndex = 0;
+        for(int i = 0; i < size; i++) {
+            final int value = entries[i];
+            if(value != last) {
+                last = value;
+                lastIndex = valueToPaletteMap.get(value);
+            }
+            entries[i] = lastIndex;
+        }
+    }
+
+    /**
+     * Updates all palette values, each long is built from its entries at once.
      * @param paletteValues new palette values
      */
     private void updateAll(int @NotNull [] paletteValues) {
@@ -265,22 +446,17 @@ public class FlexiblePalette implements Palette {
 
         final int bitsPerEntry = this.bitsPerEntry;
         final int valuesPerLong = Long.SIZE / bitsPerEntry;
-
-        final long clear = (1L << bitsPerEntry) - 1L;
         final long[] values = this.values;
 
         for(int i = 0; i < values.length; i++) {
-            long block = values[i];
-
             final int startIndex = i * valuesPerLong;
             final int endIndex = Math.min(startIndex + valuesPerLong, size);
-
-            for(int index = startIndex; index < endIndex; index++) {
-                final int bitIndex = (index - startIndex) * bitsPerEntry;
-                block = block & ~(clear << bitIndex) | ((long) paletteValues[index] << bitIndex);
-            }
+            long block = 0;
+            for(int index = endIndex - 1; index >= startIndex; index--)
+                block = block << bitsPerEntry | paletteValues[index];
             values[i] = block;
         }
+        recountReferences();
     }
 
     /**
@@ -292,13 +468,172 @@ public class FlexiblePalette implements Palette {
         // https://wiki.vg/Chunk_Format#Direct
         newBitsPerEntry = newBitsPerEntry > maxBitsPerEntry() ? 15 : newBitsPerEntry;
 
-        FlexiblePalette palette = new FlexiblePalette(adaptivePalette, newBitsPerEntry);
-        palette.paletteToValueList = paletteToValueList;
-        palette.valueToPaletteMap = valueToPaletteMap;
-        getAll(palette::set);
-        this.bitsPerEntry = palette.bitsPerEntry;
-        this.values = palette.values;
-        assert this.count == palette.count;
+        if(!hasPalette() && newBitsPerEntry <= maxBitsPerEntry()) {
+            // values of the direct palette have to be added to a new palette one by one
+            FlexiblePalette palette = new FlexiblePalette(adaptivePalette, newBitsPerEntry);
+            getAll(palette::set);
+            this.bitsPerEntry = palette.bitsPerEntry;
+            this.values = palette.values;
+            this.paletteToValueList = palette.paletteToValueList;
+            this.valueToPaletteMap = palette.valueToPaletteMap;
+            this.references = palette.references;
+            this.distinctValues = palette.distinctValues;
+            assert this.count == palette.count;
+            return;
+        }
+        int[] remap = null;
+        if(newBitsPerEntry > maxBitsPerEntry()) {
+            if(hasPalette()) remap = paletteToValueList.toArray(); // palette indices are replaced with the values
+        } else if(paletteToValueList.size() > maxPaletteSize(newBitsPerEntry)) {
+            remap = compactPalette();
+            newBitsPerEntry = (byte) PackedPalette.bitsPerEntry(paletteToValueList.size(), newBitsPerEntry);
+        }
+        if(newBitsPerEntry == bitsPerEntry && remap == null) return;
+        values = PackedPalette.repack(values, bitsPerEntry, newBitsPerEntry, maxSize(), remap);
+        bitsPerEntry = newBitsPerEntry;
+        if(remap != null && hasPalette()) recountReferences(); // the palette has been compacted
+    }
+
+    /**
+     * Removes values no entry uses from the palette, value 0 keeps palette index 0.
+     * The entries have to be remapped to the new palette indices afterwards.
+     * @return new palette index of each old palette index
+     */
+    private int @NotNull [] compactPalette() {
+        final int[] ids = paletteToValueList.toArray();
+        final int[] remap = new int[ids.length];
+        Arrays.fill(remap, -1);
+        final IntegerList paletteToValueList = new IntegerList(ids.length);
+        final IntObjectHashMap<Integer> valueToPaletteMap = new IntObjectHashMap<>(ids.length);
+        remap[0] = 0;
+        paletteToValueList.add(ids[0]);
+        valueToPaletteMap.put(ids[0], (Integer) 0);
+
+        final int bitsPerEntry = this.bitsPerEntry;
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final long mask = (1L << bitsPerEntry) - 1L;
+        final int size = maxSize();
+        for(int i = 0; i < values.length; i++) {
+            long block = values[i];
+            final int entries = Math.min(valuesPerLong, size - i * valuesPerLong);
+            for(int j = 0; j < entries; j++) {
+                final int index = (int) (block & mask);
+                block >>>= bitsPerEntry;
+                if(remap[index] != -1) continue;
+                remap[index] = paletteToValueList.size();
+                valueToPaletteMap.put(ids[index], (Integer) paletteToValueList.size());
+                paletteToValueList.add(ids[index]);
+            }
+        }
+        this.paletteToValueList = paletteToValueList;
+        this.valueToPaletteMap = valueToPaletteMap;
+        return remap;
+    }
+
+    /**
+     * @return number of distinct values of the entries, -1 if unknown
+     * because the palette stores the values directly
+     */
+    int distinctValues() {
+        return hasPalette() ? distinctValues : -1;
+    }
+
+    /**
+     * @return value of all entries if they have the same value, -1 otherwise or if unknown
+     */
+    int singleValue() {
+        if(distinctValues() != 1) return -1;
+        final int size = maxSize();
+        for(int i = 0; i < references.length; i++)
+            if(references[i] == size) return paletteToValueList.get(i);
+        return -1;
+    }
+
+    /**
+     * Checks whether the entries can be packed with fewer bits, without scanning
+     * the entries. Palettes storing the values directly can't tell.
+     * @return whether the palette can be compacted
+     */
+    boolean canCompact() {
+        return hasPalette() && requiredBitsPerEntry(distinctValues + (references[0] == 0 ? 1 : 0)) < bitsPerEntry;
+    }
+
+    /**
+     * Repacks the entries with the lowest bits per entry able to represent the distinct
+     * values, the values not used by any entry are removed from the palette.
+     * @return whether the palette has been repacked
+     */
+    boolean compact() {
+        if(!hasPalette()) {
+            // values stored directly are not tracked, they have to be collected
+            final BitSet distinct = new BitSet();
+            getAll((x, y, z, value) -> distinct.set(value));
+            distinct.set(0); // value 0 always keeps palette index 0
+            final int bitsPerEntry = requiredBitsPerEntry(distinct.cardinality());
+            if(bitsPerEntry > maxBitsPerEntry()) return false;
+            resize((byte) bitsPerEntry);
+            return true;
+        }
+        if(!canCompact()) return false;
+        resize((byte) requiredBitsPerEntry(distinctValues + (references[0] == 0 ? 1 : 0)));
+        return true;
+    }
+
+    /**
+     * @param distinctValues number of distinct values, including value 0
+     * @return the lowest bits per entry able to represent given number of values
+     */
+    private int requiredBitsPerEntry(int distinctValues) {
+        return PackedPalette.bitsPerEntry(distinctValues, adaptivePalette.defaultBitsPerEntry);
+    }
+
+    /**
+     * Changes the number of entries referencing a palette index.
+     * @param index palette index
+     * @param amount change of the number of references
+     */
+    private void addReferences(int index, int amount) {
+        final int previous = references[index];
+        final int current = previous + amount;
+        references[index] = current;
+        if(previous == 0) distinctValues++;
+        else if(current == 0) distinctValues--;
+    }
+
+    /**
+     * Sets all entries as references of a single palette index.
+     * @param index palette index
+     */
+    private void resetReferences(int index) {
+        if(!hasPalette()) return;
+        Arrays.fill(references, 0);
+        references[index] = maxSize();
+        distinctValues = 1;
+    }
+
+    /**
+     * Counts the references of all palette indices from the entries.
+     */
+    private void recountReferences() {
+        if(!hasPalette()) return;
+        final int[] references = new int[Math.max(this.references.length, paletteToValueList.size())];
+        final int bitsPerEntry = this.bitsPerEntry;
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final long mask = (1L << bitsPerEntry) - 1L;
+        final int size = maxSize();
+        for(int i = 0; i < values.length; i++) {
+            long block = values[i];
+            final int entries = Math.min(valuesPerLong, size - i * valuesPerLong);
+            for(int j = 0; j < entries; j++) {
+                references[(int) (block & mask)]++;
+                block >>>= bitsPerEntry;
+            }
+        }
+        int distinctValues = 0;
+        for(int reference : references)
+            if(reference != 0) distinctValues++;
+        this.references = references;
+        this.distinctValues = distinctValues;
     }
 
     /**
@@ -323,6 +658,8 @@ public class FlexiblePalette implements Palette {
 
         // wasn't found and is added
         paletteToValueList.add(value);
+        if(lastPaletteIndex >= references.length)
+            references = Arrays.copyOf(references, maxPaletteSize(bitsPerEntry));
         assert lastPaletteIndex < maxPaletteSize(bitsPerEntry);
         return lastPaletteIndex;
     }
@@ -0,0 +1,223 @@
+package me.pesekjak.machine.chunk.palette;
+
+import me.pesekjak.machine.utils.math.MathUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Values of a palette packed in the layout used by the protocol and the Anvil format.
+ * <p>
+ * Each entry is an index to the local palette, entries are ordered by y, z and x and
+ * packed to longs, entries never span multiple longs.
+ * @param palette values of the local palette
+ * @param data packed entries, null if the local palette has a single value
+ */
+public record PackedPalette(int @NotNull [] palette, long @Nullable [] data) {
+
+    /**
+     * Returns number of bits used by a single entry, the lowest number of bits able
+     * to represent the local palette that results in the length of the data. Different
+     * bits per entry can pack the same number of entries to a long, so the length
+     * of the data alone isn't enough.
+     * @param size number of entries
+     * @return bits per entry, 0 if there is no data
+     */
+    public int bitsPerEntry(int size) {
+        if(data == null || data.length == 0) return 0;
+        for(int bitsPerEntry = bitsPerEntry(palette.length, 1); bitsPerEntry <= Long.SIZE; bitsPerEntry++) {
+            final int valuesPerLong = Long.SIZE / bitsPerEntry;
+            if((size + valuesPerLong - 1) / valuesPerLong == data.length) return bitsPerEntry;
+        }
+        throw new IllegalStateException("Length of the packed data doesn't match the size of the palette");
+    }
+
+    /**
+     * Unpacks the local palette indices of all entries.
+     * @param size number of entries
+     * @return local palette index of each entry
+     */
+    public int @NotNull [] indices(int size) {
+        if(data == null) return new int[size];
+        return unpack(data, bitsPerEntry(size), size);
+    }
+
+    /**
+     * Unpacks entries packed to longs.
+     * @param data packed entries
+     * @param bitsPerEntry bits per entry
+     * @param size number of entries
+     * @return unpacked entries
+     */
+    public static int @NotNull [] unpack(long @NotNull [] data, int bitsPerEntry, int size) {
+        final int[] entries = new int[size];
+        unpack(data, bitsPerEntry, size, entries);
+        return entries;
+    }
+
+    /**
+     * Unpacks entries packed to longs to an existing array.
+     * @param data packed entries
+     * @param bitsPerEntry bits per entry
+     * @param size number of entries
+     * @param entries array to unpack the entries to
+     */
+    public static void unpack(long @NotNull [] data, int bitsPerEntry, int size, int @NotNull [] entries) {
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final long mask = (1L << bitsPerEntry) - 1L;
+        for(int i = 0; i < data.length; i++) {
+            long block = data[i];
+            final int startIndex = i * valuesPerLong;
+            final int endIndex = Math.min(startIndex + valuesPerLong, size);
+            for(int index = startIndex; index < endIndex; index++) {
+                entries[index] = (int) (block & mask);
+                block >>>= bitsPerEntry;
+            }
+        }
+    }
+
+    /**
+     * Packs local palette indices to longs.
+     * @param indices local palette index of each entry
+     * @param bitsPerEntry bits per entry
+     * @return packed entries
+     */
+    public static long @NotNull [] pack(int @NotNull [] indices, int bitsPerEntry) {
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final long[] data = new long[(indices.length + valuesPerLong - 1) / valuesPerLong];
+        for(int i = 0; i < data.length; i++) {
+            long block = 0;
+            final int startIndex = i * valuesPerLong;
+            final int endIndex = Math.min(startIndex + valuesPerLong, indices.length);
+            for(int index = startIndex; index < endIndex; index++)
+                block |= (long) indices[index] << (index - startIndex) * bitsPerEntry;
+            data[i] = block;
+        }
+        return data;
+    }
+
+    /**
+     * Packs entries with different bits per entry, the entries are streamed from
+     * one long to another without computing the position of each entry.
+     * @param data packed entries
+     * @param bitsPerEntry current bits per entry
+     * @param newBitsPerEntry new bits per entry, has to be able to represent all entries
+     * @param size number of entries
+     * @param remap new value of each entry, null to keep the entries as they are
+     * @return repacked entries
+     */
+    public static long @NotNull [] repack(long @NotNull [] data, int bitsPerEntry, int newBitsPerEntry, int size, int @Nullable [] remap) {
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final int newValuesPerLong = Long.SIZE / newBitsPerEntry;
+        final long[] repacked = new long[(size + newValuesPerLong - 1) / newValuesPerLong];
+        final long mask = (1L << bitsPerEntry) - 1L;
+        long newBlock = 0;
+        int shift = 0;
+        int target = 0;
+        for(int i = 0; i < data.length; i++) {
+            long block = data[i];
+            final int entries = Math.min(valuesPerLong, size - i * valuesPerLong);
+            for(int j = 0; j < entries; j++) {
+                final int entry = (int) (block & mask);
+                block >>>= bitsPerEntry;
+                newBlock |= (long) (remap != null ? remap[entry] : entry) << shift;
+                shift += newBitsPerEntry;
+                if(shift > Long.SIZE - newBitsPerEntry) {
+                    repacked[target++] = newBlock;
+                    newBlock = 0;
+                    shift = 0;
+                }
+            }
+        }
+        if(shift != 0) repacked[target] = newBlock;
+        return repacked;
+    }
+
+    /**
+     * Counts entries that aren't 0, all entries packed in a long are tested at once.
+     * @param data packed entries
+     * @param bitsPerEntry bits per entry
+     * @param size number of entries
+     * @return number of entries that aren't 0
+     */
+    public static int count(long @NotNull [] data, int bitsPerEntry, int size) {
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final int fullLongs = Math.min(data.length, size / valuesPerLong);
+        final long lowBits = lowBits(bitsPerEntry, valuesPerLong);
+        final long highBits = lowBits << bitsPerEntry - 1;
+        int count = 0;
+        for(int i = 0; i < fullLongs; i++)
+            count += Long.bitCount(nonZero(data[i], lowBits, highBits));
+        if(fullLongs < data.length) {
+            final long lastLowBits = lowBits(bitsPerEntry, size - fullLongs * valuesPerLong);
+            count += Long.bitCount(nonZero(data[fullLongs], lastLowBits, lastLowBits << bitsPerEntry - 1));
+        }
+        return count;
+    }
+
+    /**
+     * Replaces all entries of a value with another value, all entries packed in a long
+     * are compared and replaced at once.
+     * @param data packed entries
+     * @param bitsPerEntry bits per entry
+     * @param size number of entries
+     * @param value value to replace
+     * @param newValue new value of the entries
+     * @return number of replaced entries
+     */
+    public static int replace(long @NotNull [] data, int bitsPerEntry, int size, int value, int newValue) {
+        final int valuesPerLong = Long.SIZE / bitsPerEntry;
+        final long entryMask = (1L << bitsPerEntry) - 1L;
+        int replaced = 0;
+        for(int i = 0; i < data.length; i++) {
+            final long lowBits = lowBits(bitsPerEntry, Math.min(valuesPerLong, size - i * valuesPerLong));
+            final long highBits = lowBits << bitsPerEntry - 1;
+            final long block = data[i];
+            // entries equal to the value are zero after xor
+            final long equal = ~nonZero(block ^ lowBits * value, lowBits, highBits) & highBits;
+            if(equal == 0) continue;
+            final long mask = (equal >>> bitsPerEntry - 1) * entryMask;
+            data[i] = block & ~mask | lowBits * newValue & mask;
+            replaced += Long.bitCount(equal);
+        }
+        return replaced;
+    }
+
+    /**
+     * Returns the highest bit of each entry packed in a long set if the entry isn't 0.
+     * The lower bits of each entry are added to a mask of ones, which carries to the
+     * highest bit of the entry only if any of the lower bits is set.
+     * @param block packed entries
+     * @param lowBits the lowest bit of each entry
+     * @param highBits the highest bit of each entry
+     * @return the highest bits of the entries that aren't 0
+     */
+    private static long nonZero(long block, long lowBits, long highBits) {
+        final long lowerMask = highBits - lowBits;
+        return ((block & lowerMask) + lowerMask | block) & highBits;
+    }
+
+    /**
+     * @param bitsPerEntry bits per entry
+     * @param entries number of entries
+     * @return long with the lowest bit of each entry set
+     */
+    private static long lowBits(int bitsPerEntry, int entries) {
+        long bits = 0;
+        for(int i = 0; i < entries; i++)
+            bits |= 1L << i * bitsPerEntry;
+        return bits;
+    }
+
+    /**
+     * Returns the lowest number of bits per entry able to represent all
+     * indices of a local palette.
+     * @param paletteSize size of the local palette
+     * @param minBitsPerEntry min bits per entry
+     * @return bits per entry
+     */
+    public static int bitsPerEntry(int paletteSize, int minBitsPerEntry) {
+        if(paletteSize <= 1) return minBitsPerEntry;
+        return Math.max(minBitsPerEntry, MathUtils.bitsToRepresent(paletteSize - 1));
+    }
+
+}
@@ -40,7 +40,9 @@ public class ServerPropertiesImpl implements ServerProperties {
     private final @NotNull Difficulty defaultDifficulty;
     private final @NotNull WorldType defaultWorldType;
     private final boolean reducedDebugScreen;
-    private final int viewDistance, simulationDistance, tps, serverResponsiveness;
+    private final int viewDistance, simulationDistance, tps, networkThreads, compressionLevel, outboundLimit;
+    private final int chunkUnloadDelay, chunkCacheSize;
+    private final int autosavePeriod, regionSaveThreads;
     private final @NotNull String serverBrand;
     private final @Nullable BufferedImage icon;
     private final @Nullable String encodedIcon;
@@ -110,8 +112,26 @@ public class ServerPropertiesImpl implements ServerProperties {
         int tps = Integer.parseInt(properties.getProperty("tps"));
         this.tps = tps <= 0 ? Machine.DEFAULT_TPS : tps;
 
-        int response = Integer.parseInt(properties.getProperty("server-responsiveness"));
-        serverResponsiveness = Math.max(response, 0);
+        int threads = Integer.parseInt(properties.getProperty("network-threads"));
+        networkThreads = Math.max(threads, 0);
+
+        int level = Integer.parseInt(properties.getProperty("compression-level"));
+        compressionLevel = level < -1 || level > 9 ? -1 : level;
+
+        int limit = Integer.parseInt(properties.getProperty("outbound-limit"));
+        outboundLimit = Math.max(limit, 0);
+
+        int delay = Integer.parseInt(properties.getProperty("chunk-unload-delay"));
+        chunkUnloadDelay = Math.max(delay, 0);
+
+        int cacheSize = Integer.parseInt(properties.getProperty("chunk-cache-size"));
+        chunkCacheSize = Math.max(cacheSize, 0);
+
+        int period = Integer.parseInt(properties.getProperty("autosave-period"));
+        autosavePeriod = Math.max(period, 0);
+
+        int saveThreads = Integer.parseInt(properties.getProperty("region-save-threads"));
+        regionSaveThreads = Math.max(saveThreads, 1);
 
         serverBrand = properties.getProperty("server-brand");
 
@@ -8,6 +8,7 @@ import me.pesekjak.machine.server.ServerProperty;
 import me.pesekjak.machine.utils.NamespacedKey;
 import me.pesekjak.machine.world.*;
 import me.pesekjak.machine.world.dimensions.DimensionType;
+import me.pesekjak.machine.world.region.RegionFormat;
 import org.intellij.lang.annotations.Subst;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -29,11 +30,15 @@ public class WorldJson implements ServerFile, ServerProperty {
     private final long seed;
     private final @NotNull Difficulty difficulty;
     private final @NotNull WorldType worldType;
+    private final @NotNull RegionFormat regionFormat;
+    private final @Nullable RegionFormat convertFrom;
 
     private final File folder;
+    private final File file;
 
     public WorldJson(@NotNull Machine server, @NotNull File file) throws IOException {
         this.server = server;
+        this.file = file;
         folder = file.getParentFile();
         final JsonParser parser = new JsonParser();
         @Subst("machine:server") JsonObject json = parser.parse(new FileReader(file)).getAsJsonObject();
@@ -79,11 +84,21 @@ public class WorldJson implements ServerFile, ServerProperty {
             worldType = getServer().getProperties().getDefaultWorldType();
             json.addProperty("worldType", worldType.name().toLowerCase());
         }
+
+        RegionFormat regionFormat = json.has("regionFormat") ? RegionFormat.getByName(json.get("regionFormat").getAsString()) : null;
+        if (regionFormat == null) {
+            regionFormat = RegionFormat.ANVIL;
+            json.addProperty("regionFormat", regionFormat.name().toLowerCase());
+        }
+        // removed from the file once the region files are converted
+        final RegionFormat convertFrom = json.has("convertFrom") ? RegionFormat.getByName(json.get("convertFrom").getAsString()) : null;
         try (Writer writer = new FileWriter(file)) {
             getServer().getGson().toJson(json, writer);
         }
         this.difficulty = difficulty;
         this.worldType = worldType;
+        this.regionFormat = regionFormat;
+        this.convertFrom = convertFrom;
     }
 
     @Override
@@ -108,10 +123,34 @@ public class WorldJson implements ServerFile, ServerProperty {
      * @return newly created and registered world
      */
     public @NotNull WorldImpl buildWorld() {
-        WorldImpl world = new ServerWorld(folder, server, name, dimensionType, worldType, seed);
+        ServerWorld world = new ServerWorld(folder, server, name, dimensionType, worldType, seed, regionFormat);
+        if(convertFrom != null) {
+            try {
+                if(convertFrom != regionFormat) world.convertRegions(convertFrom);
+                removeConvertFrom();
+            } catch (Exception exception) {
+                server.getExceptionHandler().handle(exception, "Failed to convert region files of world '" + name + "'");
+            }
+        }
         world.setWorldSpawn(new Location(0, dimensionType.getMinY(), 0, world));
         world.setDifficulty(server.getProperties().getDefaultDifficulty());
         return world;
     }
 
+    /**
+     * Removes the region format to convert from from the world file,
+     * so the region files are converted only once.
+     * @throws IOException if an I/O error occurs during writing
+     */
+    private void removeConvertFrom() throws IOException {
+        final JsonObject json;
+        try (Reader reader = new FileReader(file)) {
+            json = new JsonParser().parse(reader).getAsJsonObject();
+        }
+        json.remove("convertFrom");
+        try (Writer writer = new FileWriter(file)) {
+            getServer().getGson().toJson(json, writer);
+        }
+    }
+
 }
@@ -1,23 +1,27 @@
 package me.pesekjak.machine.network;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import lombok.*;
 import me.pesekjak.machine.auth.Crypt;
 import me.pesekjak.machine.network.packets.Packet;
+import me.pesekjak.machine.network.packets.PacketFactory;
+import me.pesekjak.machine.network.packets.PacketImpl;
 import me.pesekjak.machine.network.packets.out.login.PacketLoginOutSetCompression;
 import me.pesekjak.machine.utils.FriendlyByteBuf;
 import me.pesekjak.machine.utils.NamespacedKey;
-import me.pesekjak.machine.utils.Pair;
 import me.pesekjak.machine.utils.ZLib;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Handles the stream of the packets of ClientConnection.
@@ -25,12 +29,17 @@ import java.util.concurrent.CopyOnWriteArrayList;
 @RequiredArgsConstructor
 public class Channel implements AutoCloseable {
 
-    private final List<Pair<NamespacedKey, PacketHandler>> handlers = new CopyOnWriteArrayList<>();
+    /**
+     * Size of the batch of written packets that is sent to the client
+     * once it's filled without waiting for the next flush.
+     */
+    public static final int BATCH_SIZE = 1 << 15;
+
+    private final Object handlerLock = new Object();
+    private volatile @NotNull HandlerChain handlers = HandlerChain.EMPTY;
 
     @Getter
     private final @NotNull ClientConnection connection;
-    protected final @NotNull DataInputStream input;
-    protected final @NotNull DataOutputStream output;
 
     @Getter
     private boolean open = true;
@@ -44,15 +53,34 @@ public class Channel implements AutoCloseable {
     private @Nullable SecretKey secretKey;
     private @Nullable EncryptionContext encryptionContext;
 
-    private FriendlyByteBuf preReadBytes = new FriendlyByteBuf();
+    private final ByteBuf cumulation = PooledByteBufAllocator.DEFAULT.directBuffer();
+    private @Nullable ByteBuf outbound;
+    private final Deque<ByteBuf> pendingWrites = new ArrayDeque<>();
+
+    /**
+     * Number of bytes written to the channel that haven't been sent to the client yet.
+     */
+    @Getter
+    private long pendingBytes;
+    /**
+     * Highest number of bytes that were waiting to be sent to the client at once.
+     */
+    @Getter
+    private long peakPendingBytes;
+    /**
+     * Number of bytes sent to the client.
+     */
+    @Getter
+    private long writtenBytes;
 
     /**
      * Adds new handler before the all existing ones.
      * @param key namespaced key of the handler
      * @param handler new handler
      */
+    @Synchronized("handlerLock")
     public void addHandlerBefore(@NotNull NamespacedKey key, @NotNull PacketHandler handler) {
-        handlers.add(0, new Pair<>(key, handler));
+        handlers = handlers.insert(0, key, handler);
     }
 
     /**
@@ -60,16 +88,18 @@ public class Channel implements AutoCloseable {
      * @param key namespaced key of the handler
      * @param handler new handler
      */
+    @Synchronized("handlerLock")
     public void addHandlerAfter(@NotNull NamespacedKey key, @NotNull PacketHandler handler) {
-        handlers.add(new Pair<>(key, handler));
+        handlers = handlers.insert(handlers.handlers().length, key, handler);
     }
 
     /**
      * Removes the handler from the channel
      * @param key key of the handler to remove
      */
+    @Synchronized("handlerLock")
     public void removeHandler(@NotNull NamespacedKey key) {
-        handlers.removeIf(pair -> pair.first().equals(key));
+        handlers = handlers.remove(key);
     }
 
     /**
@@ -98,70 +128,63 @@ public class Channel implements AutoCloseable {
     }
 
     /**
-     * Reads not yet read packets sent by client, handles, and returns.
+     * Reads packets from bytes received from the client, handles, and returns them.
+     * Bytes of packets that haven't been fully received yet are kept
+     * for the next read.
+     * @param data bytes received from the client
      * @return handled packets
      */
     @Synchronized
-    protected Packet @NotNull [] readPackets() throws IOException {
+    protected Packet @NotNull [] readPackets(@NotNull ByteBuffer data) throws IOException {
         if(!open) return new Packet[0];
-        if(input.available() == 0) {
-            /*
-            Channel tries to read bytes before they're available,
-            if read byte is -1, client disconnected, otherwise
-            the bytes need to be stored for the next packet.
-             */
-            int preReadByte;
+        // decryption
+        if(secretKey != null && encryptionContext != null) {
+            final int length = data.remaining();
+            cumulation.ensureWritable(length);
             try {
-                preReadByte = connection.getClientSocket().getInputStream().read();
-            } catch (Exception exception) { return new Packet[0]; }
-            if(preReadByte == -1) {
-                connection.disconnect();
-                return new Packet[0];
+                encryptionContext.decrypt.update(data, cumulation.nioBuffer(cumulation.writerIndex(), length));
+            } catch (ShortBufferException exception) {
+                throw new IOException(exception);
             }
-            preReadBytes.writeByte((byte) preReadByte);
-            return new Packet[0];
-        }
-        FriendlyByteBuf input = new FriendlyByteBuf();
-        // Writes pre-read bytes to the buffer and clears
-        input.writeBytes(preReadBytes.finish());
-        preReadBytes = new FriendlyByteBuf();
-        // Writes available bytes to the buffer
-        input.writeBytes(this.input.readNBytes(this.input.available()));
-        // decryption
-        if(secretKey != null && encryptionContext != null)
-            input = new FriendlyByteBuf(encryptionContext.decrypt.update(input.bytes()));
+            cumulation.writerIndex(cumulation.writerIndex() + length);
+        } else {
+            cumulation.writeBytes(data);
+        }
         List<Packet> packets = new ArrayList<>();
-        do {
-            int length = input.readVarInt();
-            FriendlyByteBuf buf = new FriendlyByteBuf();
-            if(compressed) {
-                FriendlyByteBuf compressed = new FriendlyByteBuf();
-                compressed.writeBytes(input.readBytes(length));
-                if(compressed.readVarInt() == 0) { // Was too small to be compressed
-                    byte[] uncompressedData = compressed.finish();
-                    buf.writeVarInt(uncompressedData.length);
-                    buf.writeBytes(uncompressedData);
-                } else { // Actually compressed
-                    buf.writeVarInt(compressed.readVarInt());
-                    byte[] decompressedData = ZLib.decompress(compressed.finish());
-                    buf.writeBytes(decompressedData);
+        while(cumulation.isReadable()) {
+            final int start = cumulation.readerIndex();
+            final int length = readFrameLength(cumulation);
+            if(length == -1 || cumulation.readableBytes() < length) { // Packet hasn't been fully received yet
+                cumulation.readerIndex(start);
+                break;
+            }
+            // frame is a view of the received bytes, valid until the read bytes are discarded
+            FriendlyByteBuf buf = new FriendlyByteBuf(cumulation.readSlice(length));
+            final Packet.PacketState packetState = getConnection().getClientState().in;
+            if(packetState == null) break;
+            final int dataLength = compressed ? buf.readVarInt() : 0;
+            Packet packet;
+            if(dataLength != 0) { // Actually compressed, otherwise was too small to be compressed
+                final FriendlyByteBuf decompressed = FriendlyByteBuf.pooled();
+                try {
+                    ZLib.decompress(buf.unwrap(), decompressed.unwrap(), dataLength);
+                    packet = PacketFactory.produce(decompressed.readVarInt(), packetState, decompressed);
+                } finally {
+                    decompressed.release();
                 }
             } else {
-                buf.writeVarInt(length);
-                buf.writeBytes(input.readBytes(length));
+                packet = PacketFactory.produce(buf.readVarInt(), packetState, buf);
             }
-            final Packet.PacketState packetState = getConnection().getClientState().in;
-            if(packetState == null) return new Packet[0];
-            PacketReader read = new PacketReader(buf, packetState);
-            if(read.getPacket() == null) continue;
-            for(Pair<NamespacedKey, PacketHandler> pair : handlers)
-                read = pair.second().read(this, read);
-            if(read.getPacket() != null) {
-                for(Pair<NamespacedKey, PacketHandler> pair : handlers)
-                    pair.second().afterRead(this, read.getPacket().clone());
-                packets.add(read.getPacket());
+            if(packet == null) continue;
+            final HandlerChain handlers = this.handlers;
+            packet = handlers.read(this, packet);
+            if(packet != null) {
+                handlers.afterRead(this, packet);
+                packets.add(packet);
             }
-        } while(input.readableBytes() != 0);
+            if(!open) break;
+        }
+        if(open) cumulation.discardReadBytes();
         return packets.toArray(new Packet[0]);
     }
 
@@ -169,48 +192,160 @@ public class Channel implements AutoCloseable {
      * Serializes the packet, handlers, and writes.
      * @param packet packet to write
      * @return true if packet wasn't cancelled
+     * @see Channel#writePacket(Packet, EncodedPacket)
      */
-    @Synchronized
     protected boolean writePacket(@NotNull Packet packet) throws IOException {
+        return writePacket(packet, null);
+    }
+
+    /**
+     * Serializes the packet, handlers, and writes. If the packet is already encoded
+     * and the handlers didn't replace it, the shared frame of the encoded packet
+     * is written instead, only the encryption is done per channel.
+     * <p>
+     * Written packets are batched and sent to the client once the batch is full
+     * or once the channel is flushed.
+     * @param packet packet to write
+     * @param encoded encoded packet shared between multiple channels
+     * @return true if packet wasn't cancelled
+     */
+    @Synchronized
+    protected boolean writePacket(@NotNull Packet packet, @Nullable EncodedPacket encoded) throws IOException {
         if(!open) return false;
         if(!Packet.PacketState.out().contains(packet.getPacketState()))
             throw new UnsupportedOperationException();
-        PacketWriter write = new PacketWriter(packet);
-        for(Pair<NamespacedKey, PacketHandler> pair : handlers)
-            write = pair.second().write(this, write);
-        if(write.getPacket() == null) return false;
-        FriendlyByteBuf buf = new FriendlyByteBuf();
-        // Compression
-        if(compressed)
-            buf.writeBytes(write.getPacket().rawCompressedSerialize(threshold));
-        else
-            buf.writeBytes(write.getPacket().rawSerialize());
-        // Encryption
+        final HandlerChain handlers = this.handlers;
+        final Packet written = handlers.write(this, packet);
+        if(written == null) return false;
         if(connection.isDisconnected())
             return false;
-        if(secretKey != null && encryptionContext != null)
-            output.write(encryptionContext.encrypt.update(buf.bytes()));
-        else
-            output.write(buf.bytes());
-        for(Pair<NamespacedKey, PacketHandler> pair : handlers)
-            pair.second().afterWrite(this, write.getPacket().clone());
+        final long limit = connection.getServer().getProperties().getOutboundLimit() * 1024L * 1024L;
+        if(limit > 0 && pendingBytes > limit) { // client can't keep up with the sent data
+            connection.close();
+            return false;
+        }
+        final boolean encrypted = secretKey != null && encryptionContext != null;
+        final ByteBuf shared = encoded != null && written == encoded.getPacket()
+                ? encoded.frame(compressed, threshold)
+                : null;
+        if(shared != null && !encrypted && shared.readableBytes() >= BATCH_SIZE) {
+            // large shared frames are queued as they are without copying
+            seal();
+            pendingWrites.add(shared.retainedDuplicate());
+            pendingBytes += shared.readableBytes();
+        } else {
+            if(outbound == null)
+                outbound = PooledByteBufAllocator.DEFAULT.directBuffer(BATCH_SIZE);
+            final int start = outbound.writerIndex();
+            try {
+                if(shared != null)
+                    outbound.writeBytes(shared, shared.readerIndex(), shared.readableBytes());
+                else
+                    encode(written, new FriendlyByteBuf(outbound));
+                // Encryption, done in place
+                if(encrypted) {
+                    final ByteBuffer frame = outbound.nioBuffer(start, outbound.writerIndex() - start);
+                    encryptionContext.encrypt.update(frame.duplicate(), frame);
+                }
+            } catch (Exception exception) {
+                outbound.writerIndex(start);
+                throw new IOException(exception);
+            }
+            pendingBytes += outbound.writerIndex() - start;
+            if(outbound.readableBytes() >= BATCH_SIZE) seal();
+        }
+        peakPendingBytes = Math.max(peakPendingBytes, pendingBytes);
+        if(!pendingWrites.isEmpty()) write();
+        handlers.afterWrite(this, written);
         return true;
     }
 
+    /**
+     * Encodes the full packet into a buffer using the compression
+     * of this channel.
+     * @param packet packet to encode
+     * @param buf buffer to write into
+     */
+    private void encode(@NotNull Packet packet, @NotNull FriendlyByteBuf buf) {
+        if(packet instanceof PacketImpl packetImpl) {
+            if(compressed)
+                packetImpl.writeRawCompressed(buf, threshold);
+            else
+                packetImpl.writeRaw(buf);
+        } else {
+            buf.writeBytes(compressed
+                    ? packet.rawCompressedSerialize(threshold)
+                    : packet.rawSerialize());
+        }
+    }
+
+    /**
+     * Sends all written packets to the client, as much of the data as
+     * the socket accepts without blocking is written immediately, the rest
+     * is written once the socket is writable again.
+     */
+    @Synchronized
+    public void flush() throws IOException {
+        if(!open) return;
+        seal();
+        write();
+    }
+
+    /**
+     * Moves the current batch of written packets to the pending writes.
+     */
+    private void seal() {
+        if(outbound == null) return;
+        if(outbound.isReadable()) {
+            pendingWrites.add(outbound);
+        } else {
+            outbound.release();
+        }
+        outbound = null;
+    }
+
+    /**
+     * Writes as much of the pending data to the client's socket as
+     * the socket accepts without blocking.
+     */
+    @Synchronized
+    protected void write() throws IOException {
+        final SocketChannel socket = connection.getClientSocket();
+        while(!pendingWrites.isEmpty()) {
+            final ByteBuf next = pendingWrites.peek();
+            final int written = next.readBytes(socket, next.readableBytes());
+            pendingBytes -= written;
+            writtenBytes += written;
+            if(next.isReadable()) break;
+            pendingWrites.poll().release();
+        }
+        connection.getWorker().setWriteInterest(connection, !pendingWrites.isEmpty());
+    }
+
     /**
      * Closes the channel and disconnects the client.
      */
+    @Synchronized
     @Override
     public void close() throws Exception {
+        if(!open) return;
+        try {
+            flush(); // last attempt to write the pending data, e.g. disconnect packets
+        } catch (IOException ignored) { }
         open = false;
-        input.close();
-        output.close();
+        seal();
+        for(ByteBuf pending : pendingWrites)
+            pending.release();
+        pendingWrites.clear();
+        pendingBytes = 0;
+        cumulation.release();
     }
 
     /**
      * Sets the secret key used for encryption.
      * @param key new secret key
      */
+    @Synchronized
     protected void setSecretKey(SecretKey key) {
         if(secretKey != null)
             throw new IllegalStateException("Encryption for the Channel is already enabled");
@@ -219,6 +354,111 @@ public class Channel implements AutoCloseable {
                 Crypt.getCipher(Cipher.ENCRYPT_MODE, secretKey),
                 Crypt.getCipher(Cipher.DECRYPT_MODE, secretKey)
         );
+        // bytes received after the encryption response are already encrypted
+        if(open && cumulation.isReadable()) {
+            final ByteBuffer remaining = cumulation.nioBuffer(cumulation.readerIndex(), cumulation.readableBytes());
+            try {
+                encryptionContext.decrypt.update(remaining.duplicate(), remaining);
+            } catch (ShortBufferException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+    }
+
+    /**
+     * Reads the length of the next packet frame without failing
+     * if its bytes haven't been fully received yet.
+     * @param buf buffer to read from
+     * @return length of the next frame, -1 if not all bytes of the length are available
+     */
+    private static int readFrameLength(@NotNull ByteBuf buf) {
+        int value = 0;
+        for(int position = 0; position < 35; position += 7) {
+            if(!buf.isReadable()) return -1;
+            final byte currentByte = buf.readByte();
+            value |= (currentByte & 0x7F) << position;
+            if((currentByte & 0x80) == 0) return value;
+        }
+        throw new RuntimeException("VarInt is too big");
+    }
+
+    /**
+     * Immutable compiled chain of the channel's handlers, new chain
+     * is created each time the handlers change.
+     * @param keys keys of the handlers
+     * @param handlers handlers in the order they're called
+     */
+    private record HandlerChain(NamespacedKey @NotNull [] keys, PacketHandler @NotNull [] handlers) {
+
+        static final HandlerChain EMPTY = new HandlerChain(new NamespacedKey[0], new PacketHandler[0]);
+
+        /**
+         * @param index index to insert the handler at
+         * @param key key of the handler
+         * @param handler handler to insert
+         * @return new chain with the inserted handler
+         */
+        @NotNull HandlerChain insert(int index, @NotNull NamespacedKey key, @NotNull PacketHandler handler) {
+            final NamespacedKey[] keys = new NamespacedKey[this.keys.length + 1];
+            final PacketHandler[] handlers = new PacketHandler[this.handlers.length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, index);
+            System.arraycopy(this.handlers, 0, handlers, 0, index);
+            keys[index] = key;
+            handlers[index] = handler;
+            System.arraycopy(this.keys, index, keys, index + 1, this.keys.length - index);
+            System.arraycopy(this.handlers, index, handlers, index + 1, this.handlers.length - index);
+            return new HandlerChain(keys, handlers);
+        }
+
+        /**
+         * @param key key of the handlers to remove
+         * @return new chain without the handlers with given key
+         */
+        @NotNull HandlerChain remove(@NotNull NamespacedKey key) {
+            final List<NamespacedKey> keys = new ArrayList<>();
+            final List<PacketHandler> handlers = new ArrayList<>();
+            for(int i = 0; i < this.keys.length; i++) {
+                if(this.keys[i].equals(key)) continue;
+                keys.add(this.keys[i]);
+                handlers.add(this.handlers[i]);
+            }
+            return new HandlerChain(keys.toArray(new NamespacedKey[0]), handlers.toArray(new PacketHandler[0]));
+        }
+
+        /**
+         * Passes the read packet through the handlers.
+         * @return packet that should be read, null if it has been cancelled
+         */
+        @Nullable Packet read(@NotNull Channel channel, @NotNull Packet packet) {
+            for(PacketHandler handler : handlers) {
+                packet = handler.read(channel, packet);
+                if(packet == null) return null;
+            }
+            return packet;
+        }
+
+        /**
+         * Passes the written packet through the handlers.
+         * @return packet that should be written, null if it has been cancelled
+         */
+        @Nullable Packet write(@NotNull Channel channel, @NotNull Packet packet) {
+            for(PacketHandler handler : handlers) {
+                packet = handler.write(channel, packet);
+                if(packet == null) return null;
+            }
+            return packet;
+        }
+
+        void afterRead(@NotNull Channel channel, @NotNull Packet packet) {
+            for(PacketHandler handler : handlers)
+                handler.afterRead(channel, handler.requiresCopy() ? packet.clone() : packet);
+        }
+
+        void afterWrite(@NotNull Channel channel, @NotNull Packet packet) {
+            for(PacketHandler handler : handlers)
+                handler.afterWrite(channel, handler.requiresCopy() ? packet.clone() : packet);
+        }
+
     }
 
     /**
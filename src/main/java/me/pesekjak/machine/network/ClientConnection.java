@@ -1,5 +1,6 @@
 package me.pesekjak.machine.network;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.Synchronized;
@@ -19,24 +20,31 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.SecretKey;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Random;
 
 /**
- * Default player connection implementation.
+ * Default player connection implementation, its socket is handled by
+ * a {@link NetworkWorker} shared with other connections.
  */
-public class ClientConnection extends Thread implements PlayerConnection {
+public class ClientConnection implements PlayerConnection {
 
     private static final NamespacedKey DEFAULT_HANDLER_NAMESPACE = NamespacedKey.minecraft("default");
 
     @Getter
     private final @NotNull Machine server;
     @Getter
-    private final @NotNull Socket clientSocket;
+    private final @NotNull SocketChannel clientSocket;
+    @Getter
+    private final @NotNull NetworkWorker worker;
+    private final @NotNull InetSocketAddress address;
+    @Getter(AccessLevel.PROTECTED) @Setter(AccessLevel.PROTECTED)
+    private volatile @Nullable SelectionKey selectionKey;
     @Getter
     protected @Nullable Channel channel;
     @Getter
@@ -45,7 +53,7 @@ public class ClientConnection extends Thread implements PlayerConnection {
     @Getter
     private long lastSendTimestamp = System.currentTimeMillis();
     @Getter
-    private long lastReadTimestamp = System.currentTimeMillis();
+    private volatile long lastReadTimestamp = System.currentTimeMillis();
 
     @Getter @Setter
     private @Nullable PublicKeyData publicKeyData;
@@ -59,25 +67,37 @@ public class ClientConnection extends Thread implements PlayerConnection {
     private long keepAliveKey = -1;
     private long lastKeepAlive;
 
-    public ClientConnection(@NotNull Machine server, @NotNull Socket clientSocket) {
+    public ClientConnection(@NotNull Machine server, @NotNull SocketChannel clientSocket, @NotNull NetworkWorker worker) {
         this.server = server;
         this.clientSocket = clientSocket;
+        this.worker = worker;
+        address = (InetSocketAddress) clientSocket.socket().getRemoteSocketAddress();
     }
 
     /**
      * Sends packet to the client.
      * @param packet packet sent to the client
      */
-    @Synchronized
     @Override
     public boolean sendPacket(@NotNull Packet packet) throws IOException {
+        return sendPacket(packet, null);
+    }
+
+    /**
+     * Sends packet to the client, if the packet is already encoded,
+     * the encoded frame is reused.
+     * @param packet packet sent to the client
+     * @param encoded encoded packet shared between multiple clients
+     */
+    @Synchronized
+    protected boolean sendPacket(@NotNull Packet packet, @Nullable EncodedPacket encoded) throws IOException {
         if(channel == null)
             throw new IllegalStateException();
         if(clientState == ClientState.DISCONNECTED)
             return false;
         if(!Packet.PacketState.out().contains(packet.getPacketState()))
             throw new UnsupportedOperationException();
-        if (channel.writePacket(packet)) {
+        if (channel.writePacket(packet, encoded)) {
             lastSendTimestamp = System.currentTimeMillis();
             return true;
         }
@@ -85,72 +105,48 @@ public class ClientConnection extends Thread implements PlayerConnection {
     }
 
     /**
-     * Reads packets from the client.
+     * Reads packets from bytes received from the client.
+     * @param data bytes received from the client
      * @return packets sent by client
      */
     @Synchronized
-    public Packet @Nullable [] readPackets() throws IOException {
-        assert channel != null;
-        if(clientState == ClientState.DISCONNECTED)
+    public Packet @Nullable [] readPackets(@NotNull ByteBuffer data) throws IOException {
+        final Channel channel = this.channel;
+        if(channel == null || clientState == ClientState.DISCONNECTED)
             return null;
-        return channel.readPackets();
+        final Packet[] packets = channel.readPackets(data);
+        if(packets.length != 0)
+            lastReadTimestamp = System.currentTimeMillis();
+        return packets;
     }
 
     /**
-     * Sets new input and output data streams of the
-     * connection.
-     * @param input input of the client socket
-     * @param output output of the client socket
+     * Creates new channel of the connection.
      */
-    private void setChannel(@NotNull DataInputStream input, @NotNull DataOutputStream output) {
-        this.channel = new Channel(this, input, output);
+    private void setChannel() {
+        this.channel = new Channel(this);
         this.channel.addHandlerBefore(DEFAULT_HANDLER_NAMESPACE, new PacketHandler());
     }
 
     /**
-     * Starts the client connection.
+     * Starts the client connection and registers it to its worker.
      */
     @Override
-    public void run() {
+    public void start() {
         try {
             clientState = ClientState.HANDSHAKE;
-            clientSocket.setKeepAlive(true);
-            clientSocket.setSoTimeout(1);
-            setChannel(
-                    new DataInputStream(clientSocket.getInputStream()),
-                    new DataOutputStream(clientSocket.getOutputStream())
-            );
+            clientSocket.configureBlocking(false);
+            clientSocket.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            clientSocket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            setChannel();
             final Channel channel = getChannel();
             if(channel == null) throw new IllegalStateException();
             channel.addHandlerAfter(
                     NamespacedKey.machine("main"),
                     new TranslatorHandler(server.getTranslatorDispatcher())
             );
-
-            int responsiveness = server.getServerResponsiveness();
-            Scheduler.task(((input, session) -> {
-                        if(clientState == ClientState.DISCONNECTED) {
-                            session.stop();
-                            return null;
-                        }
-                        try {
-                            Packet[] packets = readPackets();
-                            if(packets != null && packets.length != 0)
-                                lastReadTimestamp = System.currentTimeMillis();
-                        } catch (Exception exception) {
-                            getServer().getExceptionHandler().handle(new ClientException(this, exception));
-                            disconnect();
-                            return null;
-                        }
-                        if(System.currentTimeMillis() - lastReadTimestamp > ServerConnectionImpl.READ_IDLE_TIMEOUT)
-                            disconnect(Component.translatable("disconnect.timeout"));
-                        return null;
-                    }))
-                    .async()
-                    .repeat(true)
-                    .period(responsiveness != 0 ? responsiveness : 1000 / server.getTps())
-                    .run(server.getScheduler());
-
+            lastReadTimestamp = System.currentTimeMillis();
+            worker.register(this);
         } catch (Exception exception) {
             server.getExceptionHandler().handle(new ClientException(this, exception));
             close();
@@ -169,6 +165,8 @@ public class ClientConnection extends Thread implements PlayerConnection {
             if (owner != null && owner.isActive()) owner.remove();
         } catch (Exception exception) { server.getExceptionHandler().handle(exception); }
         owner = null;
+        final SelectionKey selectionKey = this.selectionKey;
+        if(selectionKey != null) selectionKey.cancel();
         final Channel channel = getChannel();
         if(channel != null) {
             try {
@@ -266,7 +264,7 @@ public class ClientConnection extends Thread implements PlayerConnection {
 
     @Override
     public @NotNull InetSocketAddress getAddress() {
-        return ((InetSocketAddress) clientSocket.getRemoteSocketAddress());
+        return address;
     }
 
     /**
@@ -0,0 +1,65 @@
+package me.pesekjak.machine.network;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import me.pesekjak.machine.network.packets.PacketImpl;
+import me.pesekjak.machine.utils.FriendlyByteBuf;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packet encoded once and shared between multiple channels, used for
+ * broadcasting of the same packet to many clients. The frames of the
+ * packet are created once they're first needed and have to be released
+ * once the packet has been written to all channels.
+ */
+class EncodedPacket {
+
+    private static final int UNCOMPRESSED = -1;
+
+    @Getter
+    private final @NotNull PacketImpl packet;
+    private final Map<Integer, ByteBuf> frames = new HashMap<>();
+
+    EncodedPacket(@NotNull PacketImpl packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * Returns the frame of the packet, the returned buffer is owned
+     * by this encoded packet and mustn't be modified.
+     * @param compressed if the frame should be compressed
+     * @param threshold compression threshold of the channel
+     * @return frame of the packet
+     */
+    @NotNull ByteBuf frame(boolean compressed, int threshold) {
+        final int key = compressed ? threshold : UNCOMPRESSED;
+        ByteBuf frame = frames.get(key);
+        if(frame != null) return frame;
+        final FriendlyByteBuf buf = FriendlyByteBuf.pooled();
+        try {
+            if(compressed)
+                packet.writeRawCompressed(buf, threshold);
+            else
+                packet.writeRaw(buf);
+        } catch (Exception exception) {
+            buf.release();
+            throw exception;
+        }
+        frame = buf.unwrap();
+        frames.put(key, frame);
+        return frame;
+    }
+
+    /**
+     * Releases all frames of the packet.
+     */
+    void release() {
+        for(ByteBuf frame : frames.values())
+            frame.release();
+        frames.clear();
+    }
+
+}
@@ -0,0 +1,143 @@
+package me.pesekjak.machine.network;
+
+import lombok.Getter;
+import me.pesekjak.machine.Machine;
+import me.pesekjak.machine.exception.ClientException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * I/O thread multiplexing multiple client connections using a single
+ * selector, reads the incoming data and writes the pending outgoing data
+ * of its connections once their sockets are ready.
+ */
+public class NetworkWorker extends Thread {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @Getter
+    private final @NotNull Machine server;
+    private final @NotNull Selector selector;
+    private final Queue<ClientConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final @NotNull ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    public NetworkWorker(@NotNull Machine server, int index) throws IOException {
+        super("Network Worker #" + index);
+        this.server = server;
+        selector = Selector.open();
+        setDaemon(true);
+    }
+
+    /**
+     * Registers a new connection to this worker, the worker starts
+     * reading its packets once it's registered.
+     * @param connection connection to register
+     */
+    protected void register(@NotNull ClientConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Changes whether the worker should wait for the socket of the connection
+     * to be writable and flush the pending data of its channel.
+     * @param connection connection to change the interest for
+     * @param write if the worker should wait for the socket to be writable
+     */
+    protected void setWriteInterest(@NotNull ClientConnection connection, boolean write) {
+        final SelectionKey key = connection.getSelectionKey();
+        if(key == null || !key.isValid()) return;
+        final int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if(key.interestOps() == ops) return;
+        key.interestOps(ops);
+        if(write) selector.wakeup();
+    }
+
+    /**
+     * Starts processing the registered connections.
+     */
+    @Override
+    public void run() {
+        while(running) {
+            try {
+                selector.select();
+            } catch (IOException exception) {
+                server.getExceptionHandler().handle(exception);
+                continue;
+            }
+            processRegistrations();
+            final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while(iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+                if(!(key.attachment() instanceof ClientConnection connection)) continue;
+                try {
+                    if(key.isValid() && key.isReadable())
+                        read(connection);
+                    if(key.isValid() && key.isWritable() && connection.getChannel() != null)
+                        connection.getChannel().write();
+                } catch (Exception exception) {
+                    server.getExceptionHandler().handle(new ClientException(connection, exception));
+                    connection.disconnect();
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Stops the worker and closes its selector.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Registers all connections waiting for the registration
+     * to the selector of this worker.
+     */
+    private void processRegistrations() {
+        ClientConnection connection;
+        while((connection = registrations.poll()) != null) {
+            if(connection.isDisconnected()) continue;
+            try {
+                connection.setSelectionKey(connection.getClientSocket().register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException exception) {
+                server.getExceptionHandler().handle(new ClientException(connection, exception));
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all bytes available in the socket of the connection and
+     * passes them to the connection.
+     * @param connection connection to read from
+     */
+    private void read(@NotNull ClientConnection connection) throws IOException {
+        final SocketChannel socket = connection.getClientSocket();
+        readBuffer.clear();
+        final int length = socket.read(readBuffer);
+        if(length == -1) {
+            connection.disconnect();
+            return;
+        }
+        if(length == 0) return;
+        readBuffer.flip();
+        connection.readPackets(readBuffer);
+    }
+
+}
@@ -2,6 +2,7 @@ package me.pesekjak.machine.network;
 
 import me.pesekjak.machine.network.packets.Packet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Reads and writes from and to the {@link Channel}, can be used
@@ -12,21 +13,21 @@ public class PacketHandler {
     /**
      * Called when packet is read from a Channel.
      * @param channel Channel packet is read from
-     * @param read Previous reader
-     * @return Next reader
+     * @param packet Packet returned by the previous handler
+     * @return Packet passed to the next handler, null if the packet should be cancelled
      */
-    public @NotNull PacketReader read(@NotNull Channel channel, @NotNull PacketReader read) {
-        return read;
+    public @Nullable Packet read(@NotNull Channel channel, @NotNull Packet packet) {
+        return packet;
     }
 
     /**
      * Called when packet is written in a Channel.
      * @param channel Channel packet is written to
-     * @param write Previous writer
-     * @return Next writer
+     * @param packet Packet returned by the previous handler
+     * @return Packet passed to the next handler, null if the packet should be cancelled
      */
-    public @NotNull PacketWriter write(@NotNull Channel channel, @NotNull PacketWriter write) {
-        return write;
+    public @Nullable Packet write(@NotNull Channel channel, @NotNull Packet packet) {
+        return packet;
     }
 
     /**
@@ -47,4 +48,14 @@ public class PacketHandler {
 
     }
 
+    /**
+     * Handlers that keep or modify the packets passed to {@link PacketHandler#afterRead(Channel, Packet)}
+     * and {@link PacketHandler#afterWrite(Channel, Packet)} should receive their copies instead, by
+     * default the handlers receive the same packet instance that has been read or written.
+     * @return if the handler should receive copies of the packets after they're read or written
+     */
+    public boolean requiresCopy() {
+        return false;
+    }
+
 }
@@ -2,28 +2,31 @@ package me.pesekjak.machine.network;
 
 import lombok.Getter;
 import me.pesekjak.machine.Machine;
+import me.pesekjak.machine.exception.ClientException;
 import me.pesekjak.machine.network.packets.Packet;
+import me.pesekjak.machine.network.packets.PacketImpl;
+import me.pesekjak.machine.server.schedule.Scheduler;
 import net.kyori.adventure.text.Component;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Set;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.stream.Collectors;
 
 /**
- * Default implementation of the server connection.
+ * Default implementation of the server connection, accepts the clients
+ * and distributes them between a fixed number of network workers.
  */
 public class ServerConnectionImpl extends Thread implements ServerConnection {
 
     public final static int READ_IDLE_TIMEOUT = 30000;
     public final static int KEEP_ALIVE_FREQ = 20000;
+    public final static int IDLE_CHECK_PERIOD = 1000;
 
     @Getter
     private final @NotNull Machine server;
@@ -33,8 +36,11 @@ public class ServerConnectionImpl extends Thread implements ServerConnection {
     @Getter
     private final int port;
     @Getter
-    private @Nullable ServerSocket socket;
-    private boolean running;
+    private @Nullable ServerSocketChannel socket;
+    private final List<NetworkWorker> workers = new ArrayList<>();
+    private int nextWorker;
+    private volatile boolean running;
+    private final Runnable flushHandler = this::flush;
 
     public ServerConnectionImpl(@NotNull Machine server) {
         if(server.isRunning())
@@ -51,13 +57,22 @@ public class ServerConnectionImpl extends Thread implements ServerConnection {
     @Override
     public void run() {
         try {
-            socket = new ServerSocket(port, 50, InetAddress.getByName(ip));
-            server.getConsole().info("Server is listening on '" + socket.getInetAddress().getHostName() + ":" + socket.getLocalPort() + "'");
+            socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(InetAddress.getByName(ip), port), 50);
+            server.getConsole().info("Server is listening on '" + socket.socket().getInetAddress().getHostName() + ":" + socket.socket().getLocalPort() + "'");
+            final int threads = server.getProperties().getNetworkThreads();
+            for(int i = 0; i < (threads != 0 ? threads : Runtime.getRuntime().availableProcessors()); i++) {
+                final NetworkWorker worker = new NetworkWorker(server, i);
+                workers.add(worker);
+                worker.start();
+            }
             running = true;
+            startIdleCheck();
+            server.getScheduler().addTickHandler(Scheduler.TickPhase.NETWORK_FLUSH, flushHandler);
             while(running) {
                 try {
-                    Socket connection = socket.accept();
-                    ClientConnection sc = new ClientConnection(server, connection);
+                    SocketChannel connection = socket.accept();
+                    ClientConnection sc = new ClientConnection(server, connection, nextWorker());
                     clients.add(sc);
                     sc.start();
                 } catch (Exception exception) {
@@ -79,9 +94,12 @@ public class ServerConnectionImpl extends Thread implements ServerConnection {
         if(!running)
             throw new IllegalStateException("Server connection isn't running");
         running = false;
+        server.getScheduler().removeTickHandler(Scheduler.TickPhase.NETWORK_FLUSH, flushHandler);
         try {
             if(socket != null) socket.close();
         } catch (IOException ignored) { }
+        for(NetworkWorker worker : workers)
+            worker.close();
     }
 
     /**
@@ -94,14 +112,76 @@ public class ServerConnectionImpl extends Thread implements ServerConnection {
 
     /**
      * Sends a packet to all clients with state matching the packet's state.
+     * The packet is encoded only once and the same frame is written to
+     * all clients.
      * @param packet packet that will be sent
      */
     @Override
     public void broadcastPacket(@NotNull Packet packet) throws IOException {
-        final Set<ClientConnection.ClientState> states = Arrays.stream(PlayerConnection.ClientState.fromState(packet.getPacketState()))
-                .collect(Collectors.toSet());
+        final Packet.PacketState state = packet.getPacketState();
+        final EncodedPacket encoded = packet instanceof PacketImpl packetImpl ? new EncodedPacket(packetImpl) : null;
+        try {
+            for(PlayerConnection client : clients) {
+                final PlayerConnection.ClientState clientState = client.getClientState();
+                if(clientState.in != state && clientState.out != state) continue;
+                if(client instanceof ClientConnection connection)
+                    connection.sendPacket(packet, encoded);
+                else
+                    client.sendPacket(packet);
+            }
+        } finally {
+            if(encoded != null) encoded.release();
+        }
+    }
+
+    /**
+     * @return worker for the next accepted connection
+     */
+    private @NotNull NetworkWorker nextWorker() {
+        final NetworkWorker worker = workers.get(nextWorker);
+        nextWorker = (nextWorker + 1) % workers.size();
+        return worker;
+    }
+
+    /**
+     * Starts the task disconnecting the clients that haven't
+     * sent any packet for too long.
+     */
+    private void startIdleCheck() {
+        Scheduler.task(((input, session) -> {
+                    if(!running) {
+                        session.stop();
+                        return null;
+                    }
+                    final long now = System.currentTimeMillis();
+                    for(PlayerConnection client : clients) {
+                        if(!(client instanceof ClientConnection connection)) continue;
+                        if(now - connection.getLastReadTimestamp() > READ_IDLE_TIMEOUT)
+                            connection.disconnect(Component.translatable("disconnect.timeout"));
+                    }
+                    return null;
+                }))
+                .async()
+                .repeat(true)
+                .period(IDLE_CHECK_PERIOD)
+                .run(server.getScheduler());
+    }
+
+    /**
+     * Sends the packets written to the clients during the tick,
+     * called during the network flush phase of each tick.
+     */
+    private void flush() {
         for(PlayerConnection client : clients) {
-            if(states.contains(client.getClientState())) client.sendPacket(packet);
+            if(!(client instanceof ClientConnection connection)) continue;
+            final Channel channel = connection.getChannel();
+            if(channel == null) continue;
+            try {
+                channel.flush();
+            } catch (Exception exception) {
+                server.getExceptionHandler().handle(new ClientException(connection, exception));
+                connection.disconnect();
+            }
         }
     }
 
@@ -7,19 +7,27 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles the creation of Packet instances.
+ * <p>
+ * Registered packets are stored in dense arrays for each packet state indexed
+ * by the packet ID, lookups by the packet class are cached per class.
  */
 @UtilityClass
 public class PacketFactory {
 
-    final static Map<Class<? extends Packet>, PacketCreator<? extends Packet>> CREATORS = new HashMap<>();
-
-    final static Map<Integer, Class<? extends Packet>> IN_MAPPING = new HashMap<>();
-    final static Map<Class<? extends Packet>, Integer> OUT_MAPPING = new HashMap<>();
+    private final static Map<Class<? extends Packet>, Registration> REGISTRATIONS = new ConcurrentHashMap<>();
+    private final static ClassValue<Registration> BY_CLASS = new ClassValue<>() {
+        @Override
+        protected Registration computeValue(@NotNull Class<?> type) {
+            return REGISTRATIONS.get(type);
+        }
+    };
+    private final static Registration[][] BY_ID = new Registration[Packet.PacketState.values().length][0];
 
     static {
         try {
@@ -27,6 +35,27 @@ public class PacketFactory {
         } catch (IOException ignored) { }
     }
 
+    /**
+     * Registers new packet to the factory.
+     * @param packetClass class reference of the packet
+     * @param id mapped id by Mojang
+     * @param state state of the packet
+     * @param creator creator of the packet
+     */
+    static synchronized void register(@NotNull Class<? extends Packet> packetClass, int id, @NotNull Packet.PacketState state, @NotNull PacketCreator<? extends Packet> creator) {
+        if(id < 0 || id >= 1 << Packet.PacketState.OFFSET)
+            throw new IllegalArgumentException("Invalid packet ID " + id);
+        final Registration registration = new Registration(packetClass, id, state, creator);
+        Registration[] registrations = BY_ID[state.ordinal()];
+        if(id >= registrations.length) {
+            registrations = Arrays.copyOf(registrations, id + 1);
+            BY_ID[state.ordinal()] = registrations;
+        }
+        registrations[id] = registration;
+        REGISTRATIONS.put(packetClass, registration);
+        BY_CLASS.remove(packetClass); // in case it has been looked up before the registration
+    }
+
     /**
      * Creates new instance of a packet of provided class using the {@link FriendlyByteBuf}.
      * @param packetClass class reference of the packet
@@ -34,9 +63,22 @@ public class PacketFactory {
      * @return instance of the packet
      */
     public static @Nullable Packet produce(final @NotNull Class<? extends Packet> packetClass, @NotNull FriendlyByteBuf buf) {
-        PacketCreator<? extends Packet> creator = CREATORS.get(packetClass);
-        if (creator == null) return null;
-        return creator.create(buf);
+        final Registration registration = BY_CLASS.get(packetClass);
+        if(registration == null) return null;
+        return registration.creator.create(buf);
+    }
+
+    /**
+     * Creates new instance of a packet with given Mojang mapped id using the {@link FriendlyByteBuf}.
+     * @param id id of the packet
+     * @param state state of the packet
+     * @param buf buffer containing the packet data
+     * @return instance of the packet, null if there is no packet with given id
+     */
+    public static @Nullable Packet produce(int id, @NotNull Packet.PacketState state, @NotNull FriendlyByteBuf buf) {
+        final Registration registration = getRegistration(id, state);
+        if(registration == null) return null;
+        return registration.creator.create(buf);
     }
 
     /**
@@ -45,13 +87,10 @@ public class PacketFactory {
      * @return class of the packet
      */
     public static @Nullable Class<? extends Packet> getPacketInById(int id) {
-        Class<? extends Packet> in = IN_MAPPING.get(id);
-        if(in != null) return in;
-        for(Map.Entry<Class<? extends Packet>, Integer> entry : OUT_MAPPING.entrySet()) {
-            if(entry.getValue() != id) continue;
-            return entry.getKey();
-        }
-        return null;
+        final int mask = id & (0b111 << Packet.PacketState.OFFSET);
+        final Packet.PacketState state = Packet.PacketState.fromMask(mask);
+        if(state == null) return null;
+        return getPacketByRawId(id & ~mask, state);
     }
 
     /**
@@ -60,14 +99,9 @@ public class PacketFactory {
      * @param state state of the packet
      * @return class of the packet
      */
-    public static @Nullable Class<? extends Packet> getPacketByRawId(int id, @NotNull PacketImpl.PacketState state) {
-        Class<? extends Packet> in = IN_MAPPING.get(id | state.getMask());
-        if(in != null) return in;
-        for(Map.Entry<Class<? extends Packet>, Integer> entry : OUT_MAPPING.entrySet()) {
-            if(entry.getValue() != (id | state.getMask())) continue;
-            return entry.getKey();
-        }
-        return null;
+    public static @Nullable Class<? extends Packet> getPacketByRawId(int id, @NotNull Packet.PacketState state) {
+        final Registration registration = getRegistration(id, state);
+        return registration != null ? registration.packetClass : null;
     }
 
     /**
@@ -76,13 +110,8 @@ public class PacketFactory {
      * @return id of the packet, -1 if it doesn't exist
      */
     public static int getIdByPacket(@NotNull Class<? extends Packet> packetClass) {
-        Integer out = OUT_MAPPING.get(packetClass);
-        if(out != null) return out;
-        for(Map.Entry<Integer, Class<? extends Packet>> entry : IN_MAPPING.entrySet()) {
-            if(entry.getValue() != packetClass) continue;
-            return entry.getKey();
-        }
-        return -1;
+        final Registration registration = BY_CLASS.get(packetClass);
+        return registration != null ? registration.id | registration.state.getMask() : -1;
     }
 
     /**
@@ -91,14 +120,9 @@ public class PacketFactory {
      * @param state state of the packet
      * @return id of the packet, -1 if it doesn't exist
      */
-    public static int getRawIdByPacket(@NotNull Class<? extends Packet> packetClass, @NotNull PacketImpl.PacketState state) {
-        Integer out = OUT_MAPPING.get(packetClass);
-        if(out != null) return out & ~state.getMask();
-        for(Map.Entry<Integer, Class<? extends Packet>> entry : IN_MAPPING.entrySet()) {
-            if(entry.getValue() != packetClass) continue;
-            return entry.getKey() & ~state.getMask();
-        }
-        return -1;
+    public static int getRawIdByPacket(@NotNull Class<? extends Packet> packetClass, @NotNull Packet.PacketState state) {
+        final Registration registration = BY_CLASS.get(packetClass);
+        return registration != null && registration.state == state ? registration.id : -1;
     }
 
     /**
@@ -107,14 +131,32 @@ public class PacketFactory {
      * @return state of the packets of given class
      */
     public static @Nullable Packet.PacketState getRegisteredState(@NotNull Class<? extends Packet> packetClass) {
-        Integer out = OUT_MAPPING.get(packetClass);
-        if(out != null)
-            return Packet.PacketState.fromMask(out >> Packet.PacketState.OFFSET);
-        for(Map.Entry<Integer, Class<? extends Packet>> entry : IN_MAPPING.entrySet()) {
-            if(entry.getValue() != packetClass) continue;
-            return Packet.PacketState.fromMask(entry.getKey() & (0b111 << Packet.PacketState.OFFSET));
-        }
-        return null;
+        final Registration registration = BY_CLASS.get(packetClass);
+        return registration != null ? registration.state : null;
+    }
+
+    /**
+     * @param id id of the packet
+     * @param state state of the packet
+     * @return registration of the packet with given id and state
+     */
+    private static @Nullable Registration getRegistration(int id, @NotNull Packet.PacketState state) {
+        final Registration[] registrations = BY_ID[state.ordinal()];
+        if(id < 0 || id >= registrations.length) return null;
+        return registrations[id];
+    }
+
+    /**
+     * Registered packet.
+     * @param packetClass class of the packet
+     * @param id Mojang mapped id of the packet
+     * @param state state of the packet
+     * @param creator creator of the packet
+     */
+    private record Registration(@NotNull Class<? extends Packet> packetClass,
+                                int id,
+                                @NotNull Packet.PacketState state,
+                                @NotNull PacketCreator<? extends Packet> creator) {
     }
 
 }
@@ -1,16 +1,34 @@
 package me.pesekjak.machine.network.packets;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import me.pesekjak.machine.utils.FriendlyByteBuf;
 import me.pesekjak.machine.utils.ZLib;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Default packet implementation.
  */
 public abstract class PacketImpl implements Packet {
 
+    /**
+     * Reusable buffer for encoding of packet ID and packet data.
+     */
+    private static final ThreadLocal<ByteBuf> ENCODE_BUFFER = ThreadLocal.withInitial(Unpooled::buffer);
+    /**
+     * Capacity over which the reusable buffer is dropped after use.
+     */
+    private static final int MAX_ENCODE_BUFFER_CAPACITY = 1 << 16;
+
+    private volatile byte @Nullable [] encoded;
+    private volatile byte @Nullable [] compressed;
+    private volatile boolean frozen;
+
     /**
      * @return mapped ID of the packet
      */
@@ -24,27 +42,65 @@ public abstract class PacketImpl implements Packet {
 
     public abstract @NotNull PacketImpl clone();
 
+    /**
+     * Writes the packet data into a buffer, doesn't contain packet size and ID.
+     * By default the data are serialized first, packets with large data should
+     * write them into the buffer directly.
+     * @param buf buffer to write into
+     */
+    public void write(@NotNull FriendlyByteBuf buf) {
+        buf.writeBytes(serialize());
+    }
+
+    /**
+     * Encodes the packet and keeps its encoding cached permanently, all following
+     * serializations of the packet reuse it. Should be used for packets that
+     * are sent multiple times and are no longer modified.
+     * @return this
+     */
+    public @NotNull PacketImpl freeze() {
+        frozen = true;
+        encode();
+        return this;
+    }
+
     /**
      * Serializes the full packet.
      * @return serialized packet
      */
     public byte @NotNull [] rawSerialize() {
-        return new FriendlyByteBuf()
-                .writeVarInt(getSize())
-                .writeVarInt(getId())
-                .writeBytes(serialize())
-                .bytes();
+        final FriendlyByteBuf buf = new FriendlyByteBuf();
+        writeRaw(buf);
+        return buf.bytes();
     }
 
     /**
-     * Returns the size of the packet ID and packet data.
+     * Writes the full packet into a buffer. The packet is written in a single pass,
+     * the size of the packet is backfilled as padded VarInt once the data are written.
+     * @param buf buffer to write into
+     */
+    public void writeRaw(@NotNull FriendlyByteBuf buf) {
+        final byte[] encoded = this.encoded;
+        if(encoded != null) {
+            invalidate();
+            buf.writeVarInt(encoded.length).writeBytes(encoded);
+            return;
+        }
+        final int start = buf.writerIndex();
+        buf.unwrap().writeZero(FriendlyByteBuf.PADDED_VAR_INT_SIZE);
+        buf.writeVarInt(getId());
+        write(buf);
+        buf.setPaddedVarInt(start, buf.writerIndex() - start - FriendlyByteBuf.PADDED_VAR_INT_SIZE);
+    }
+
+    /**
+     * Returns the size of the packet ID and packet data. The encoded packet
+     * is cached and reused by the next serialization of the packet, the packet
+     * shouldn't be modified in between.
      * @return size of the packet
      */
     public int getSize() {
-        return new FriendlyByteBuf()
-                .writeVarInt(getId())
-                .writeBytes(serialize())
-                .bytes().length;
+        return encode().length;
     }
 
     /**
@@ -53,46 +109,148 @@ public abstract class PacketImpl implements Packet {
      * @return serialized compressed packet
      */
     public byte @NotNull [] rawCompressedSerialize(int threshold) {
-        int size = getSize();
+        final FriendlyByteBuf buf = new FriendlyByteBuf();
+        writeRawCompressed(buf, threshold);
+        return buf.bytes();
+    }
+
+    /**
+     * Writes the full compressed packet into a buffer.
+     * @param buf buffer to write into
+     * @param threshold threshold
+     */
+    public void writeRawCompressed(@NotNull FriendlyByteBuf buf, int threshold) {
+        final byte[] encoded = this.encoded;
+        byte[] compressed = this.compressed;
+        invalidate();
+        if(encoded != null) {
+            writeCompressed(buf, Unpooled.wrappedBuffer(encoded), compressed, threshold);
+            return;
+        }
+        final ByteBuf data = ENCODE_BUFFER.get().clear();
+        try {
+            writeData(data);
+            writeCompressed(buf, data, compressed, threshold);
+        } finally {
+            trimEncodeBuffer();
+        }
+    }
+
+    /**
+     * Writes the full compressed packet into a buffer.
+     * @param buf buffer to write into
+     * @param data packet ID and data
+     * @param compressed cached compressed packet ID and data
+     * @param threshold threshold
+     */
+    private void writeCompressed(@NotNull FriendlyByteBuf buf, @NotNull ByteBuf data, byte @Nullable [] compressed, int threshold) {
+        final int size = data.readableBytes();
         if(size < threshold) { // Packet is too small to be compressed
-            byte[] data = new FriendlyByteBuf().writeVarInt(0) // Empty Data length
-                    .writeVarInt(getId())
-                    .writeBytes(serialize())
-                    .bytes();
-            return new FriendlyByteBuf()
-                    .writeVarInt(data.length)
-                    .writeBytes(data)
-                    .bytes();
+            buf.writeVarInt(size + 1)
+                    .writeVarInt(0); // Empty Data length
+            buf.unwrap().writeBytes(data);
+            return;
         }
-        byte[] dataLength = new FriendlyByteBuf()
-                .writeVarInt(size)
-                .bytes();
-        byte[] compressed = getCompressedPacketData();
-        return new FriendlyByteBuf()
-                .writeVarInt(dataLength.length + compressed.length)
-                .writeVarInt(size)
-                .writeBytes(compressed)
-                .bytes();
+        if(compressed == null && frozen)
+            compressed = compressed();
+        if(compressed != null) {
+            buf.writeVarInt(FriendlyByteBuf.varIntSize(size) + compressed.length)
+                    .writeVarInt(size)
+                    .writeBytes(compressed);
+            return;
+        }
+        // compressed straight into the buffer, size is backfilled once it's known
+        final int start = buf.writerIndex();
+        buf.unwrap().writeZero(FriendlyByteBuf.PADDED_VAR_INT_SIZE);
+        buf.writeVarInt(size);
+        compress(data, buf.unwrap());
+        buf.setPaddedVarInt(start, buf.writerIndex() - start - FriendlyByteBuf.PADDED_VAR_INT_SIZE);
     }
 
     /**
-     * Returns the compressed size of packet ID and packet data.
+     * Returns the compressed size of packet ID and packet data. The compressed
+     * packet is cached and reused by the next serialization of the packet, the
+     * packet shouldn't be modified in between.
      * @return compressed size of the packet
      */
     public int getCompressedSize() {
-        return getCompressedPacketData().length;
+        return compressed().length;
+    }
+
+    /**
+     * Drops the cached encoding of the packet, unless the packet is frozen.
+     */
+    private void invalidate() {
+        if(frozen) return;
+        encoded = null;
+        compressed = null;
+    }
+
+    /**
+     * Returns the cached packet ID and packet data, encodes them if they're
+     * not cached yet.
+     * @return encoded packet ID and data
+     */
+    private byte @NotNull [] encode() {
+        byte[] encoded = this.encoded;
+        if(encoded != null) return encoded;
+        final ByteBuf data = ENCODE_BUFFER.get().clear();
+        try {
+            writeData(data);
+            encoded = ByteBufUtil.getBytes(data);
+        } finally {
+            trimEncodeBuffer();
+        }
+        this.encoded = encoded;
+        return encoded;
+    }
+
+    /**
+     * Drops the reusable buffer of the current thread if it grew too large
+     * while encoding a large packet, e.g. a chunk, so the threads don't keep
+     * buffers as large as the largest packet they have encoded.
+     */
+    private static void trimEncodeBuffer() {
+        if(ENCODE_BUFFER.get().capacity() > MAX_ENCODE_BUFFER_CAPACITY)
+            ENCODE_BUFFER.remove();
+    }
+
+    /**
+     * Returns the cached compressed packet ID and packet data, compresses
+     * them if they're not cached yet.
+     * @return compressed packet ID and data
+     */
+    private byte @NotNull [] compressed() {
+        byte[] compressed = this.compressed;
+        if(compressed != null) return compressed;
+        final ByteBuf output = Unpooled.buffer();
+        compress(Unpooled.wrappedBuffer(encode()), output);
+        compressed = ByteBufUtil.getBytes(output);
+        this.compressed = compressed;
+        return compressed;
     }
 
     /**
-     * @return compressed packet data, id included
+     * Writes packet ID and packet data into a buffer.
+     * @param data buffer to write into
      */
-    private byte @NotNull [] getCompressedPacketData() {
+    private void writeData(@NotNull ByteBuf data) {
+        final FriendlyByteBuf buf = new FriendlyByteBuf(data);
+        buf.writeVarInt(getId());
+        write(buf);
+    }
+
+    /**
+     * Compresses packet ID and packet data into a buffer.
+     * @param data packet ID and data
+     * @param output buffer to write the compressed data into
+     */
+    private static void compress(@NotNull ByteBuf data, @NotNull ByteBuf output) {
         try {
-            return ZLib.compress(new FriendlyByteBuf()
-                    .writeVarInt(getId())
-                    .writeBytes(serialize())
-                    .bytes());
-        } catch (IOException exception) { return new byte[0]; }
+            ZLib.compress(data, output);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
     }
 
 }
@@ -14,9 +14,7 @@ public abstract class PacketIn extends PacketImpl {
      * @param creator PacketCreator
      */
     protected static void register(@NotNull Class<? extends PacketIn> packetClass, int id, @NotNull PacketState state, @NotNull PacketCreator<? extends PacketIn> creator) {
-        id = id | state.getMask();
-        PacketFactory.IN_MAPPING.put(id, packetClass);
-        PacketFactory.CREATORS.put(packetClass, creator);
+        PacketFactory.register(packetClass, id, state, creator);
     }
 
     public abstract @NotNull PacketIn clone();
@@ -14,9 +14,7 @@ public abstract class PacketOut extends PacketImpl {
      * @param creator PacketCreator
      */
     protected static void register(@NotNull Class<? extends PacketOut> packetClass, int id, @NotNull PacketState state, PacketCreator<? extends PacketOut> creator) {
-        id = id | state.getMask();
-        PacketFactory.OUT_MAPPING.put(packetClass, id);
-        PacketFactory.CREATORS.put(packetClass, creator);
+        PacketFactory.register(packetClass, id, state, creator);
     }
 
     public abstract @NotNull PacketOut clone();
@@ -47,12 +47,17 @@ public class PacketPlayOutChunkData extends PacketOut {
 
     @Override
     public byte @NotNull [] serialize() {
-        return new FriendlyByteBuf()
-                .writeInt(chunkX)
+        final FriendlyByteBuf buf = new FriendlyByteBuf();
+        write(buf);
+        return buf.bytes();
+    }
+
+    @Override
+    public void write(@NotNull FriendlyByteBuf buf) {
+        buf.writeInt(chunkX)
                 .writeInt(chunkZ)
                 .write(chunkData)
-                .write(lightData)
-                .bytes();
+                .write(lightData);
     }
 
     @Override
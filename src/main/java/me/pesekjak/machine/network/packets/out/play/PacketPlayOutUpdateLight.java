@@ -43,11 +43,16 @@ public class PacketPlayOutUpdateLight extends PacketOut {
 
     @Override
     public byte @NotNull [] serialize() {
-        return new FriendlyByteBuf()
-                .writeVarInt(chunkX)
+        final FriendlyByteBuf buf = new FriendlyByteBuf();
+        write(buf);
+        return buf.bytes();
+    }
+
+    @Override
+    public void write(@NotNull FriendlyByteBuf buf) {
+        buf.writeVarInt(chunkX)
                 .writeVarInt(chunkZ)
-                .write(lightData)
-                .bytes();
+                .write(lightData);
     }
 
     @Override
@@ -1,31 +1,36 @@
 package me.pesekjak.machine.translation;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import me.pesekjak.machine.Machine;
 import me.pesekjak.machine.network.ClientConnection;
 import me.pesekjak.machine.network.packets.Packet;
 import me.pesekjak.machine.network.packets.PacketFactory;
 import me.pesekjak.machine.utils.ClassUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Translator dispatcher, calls registered translators from received packets.
  */
-@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 public class TranslatorDispatcher {
 
     @Getter
     private final @NotNull Machine server;
 
-    private final Multimap<Class<? extends Packet>, PacketTranslator<? extends Packet>> IN_TRANSLATORS = ArrayListMultimap.create();
-    private final Multimap<Class<? extends Packet>, PacketTranslator<? extends Packet>> OUT_TRANSLATORS = ArrayListMultimap.create();
+    private static final PacketTranslator<?>[] NO_TRANSLATORS = new PacketTranslator[0];
+
+    /**
+     * Immutable snapshot of registered translators indexed by the state and the ID of their packets,
+     * replaced with an updated copy each time the translators change.
+     */
+    private volatile PacketTranslator<?>[][][] translators = new PacketTranslator[Packet.PacketState.values().length][0][];
 
     /**
      * Creates the default dispatcher with all translators from 'translators' package
@@ -63,7 +68,7 @@ public class TranslatorDispatcher {
      * @param translator translator to register
      */
     public void registerInTranslator(@NotNull PacketTranslator<? extends Packet> translator) {
-        IN_TRANSLATORS.put(translator.packetClass(), translator);
+        register(translator);
     }
 
     /**
@@ -71,7 +76,7 @@ public class TranslatorDispatcher {
      * @param translator translator to register
      */
     public void unregisterInTranslator(@NotNull PacketTranslator<? extends Packet> translator) {
-        IN_TRANSLATORS.remove(translator.packetClass(), translator);
+        unregister(translator.packetClass(), translator);
     }
 
     /**
@@ -79,7 +84,7 @@ public class TranslatorDispatcher {
      * @param packetClass packet class of packet translators to unregister
      */
     public void unregisterInTranslator(@NotNull Class<? extends Packet> packetClass) {
-        IN_TRANSLATORS.removeAll(packetClass);
+        unregister(packetClass, null);
     }
 
     /**
@@ -87,7 +92,7 @@ public class TranslatorDispatcher {
      * @param translator translator to register
      */
     public void registerOutTranslator(@NotNull PacketTranslator<? extends Packet> translator) {
-        OUT_TRANSLATORS.put(translator.packetClass(), translator);
+        register(translator);
     }
 
     /**
@@ -95,7 +100,7 @@ public class TranslatorDispatcher {
      * @param translator translator to register
      */
     public void unregisterOutTranslator(@NotNull PacketTranslator<? extends Packet> translator) {
-        OUT_TRANSLATORS.remove(translator.packetClass(), translator);
+        unregister(translator.packetClass(), translator);
     }
 
     /**
@@ -103,87 +108,91 @@ public class TranslatorDispatcher {
      * @param packetClass packet class of packet translators to unregister
      */
     public void unregisterOutTranslator(@NotNull Class<? extends Packet> packetClass) {
-        OUT_TRANSLATORS.removeAll(packetClass);
+        unregister(packetClass, null);
     }
 
     /**
      * Unregisters all packet translators of this dispatcher.
      */
-    public void clear() {
-        IN_TRANSLATORS.clear();
-        OUT_TRANSLATORS.clear();
+    public synchronized void clear() {
+        translators = new PacketTranslator[Packet.PacketState.values().length][0][];
     }
 
     /**
      * Plays all translators for given packet using given connection.
-     * @param connection connection that sent the packet
+     * @param connection connection that sent or will receive the packet
      * @param packet packet
      * @return true if the packet wasn't cancelled
      */
     protected boolean play(@NotNull ClientConnection connection, @NotNull Packet packet) {
-        if (Packet.PacketState.in().contains(packet.getPacketState()))
-            return playIn(connection, packet);
-        else if (Packet.PacketState.out().contains(packet.getPacketState()))
-            return playOut(connection, packet);
-        return false;
-    }
-
-    /**
-     * Plays all translators for given packet using given connection.
-     * @param connection connection that sent the packet
-     * @param packet packet
-     * @return true if the packet wasn't cancelled
-     */
-    protected boolean playIn(@NotNull ClientConnection connection, @NotNull Packet packet) {
         boolean result = true;
-        for(PacketTranslator<? extends Packet> translator : IN_TRANSLATORS.get(packet.getClass()))
-            result = translator.rawTranslate(connection, packet);
+        for(PacketTranslator<? extends Packet> translator : getTranslators(packet))
+            result &= translator.rawTranslate(connection, packet);
         return result;
     }
 
     /**
-     * Plays all translators for given packet using given connection.
-     * @param connection connection that will receive the packet
+     * Plays all the translators after the packet was received or sent by server
+     * @param connection connection that sent or received the packet
      * @param packet packet
-     * @return true if the packet wasn't cancelled
      */
-    protected boolean playOut(@NotNull ClientConnection connection, @NotNull Packet packet) {
-        boolean result = true;
-        for(PacketTranslator<? extends Packet> translator : OUT_TRANSLATORS.get(packet.getClass()))
-            result = translator.rawTranslate(connection, packet);
-        return result;
+    protected void playAfter(@NotNull ClientConnection connection, @NotNull Packet packet) {
+        for(PacketTranslator<? extends Packet> translator : getTranslators(packet))
+            translator.rawTranslateAfter(connection, packet);
     }
 
     /**
-     * Plays all the translators after the packet was received by server
-     * @param connection connection that sent the packet
+     * Returns translators registered for the packet.
      * @param packet packet
+     * @return translators of the packet
      */
-    protected void playAfter(@NotNull ClientConnection connection, @NotNull Packet packet) {
-        if(Packet.PacketState.in().contains(packet.getPacketState()))
-            playInAfter(connection, packet);
-        else if (Packet.PacketState.out().contains(packet.getPacketState()))
-            playOutAfter(connection, packet);
+    private PacketTranslator<?> @NotNull [] getTranslators(@NotNull Packet packet) {
+        final PacketTranslator<?>[][] translators = this.translators[packet.getPacketState().ordinal()];
+        final int id = packet.getId();
+        if(id < 0 || id >= translators.length || translators[id] == null) return NO_TRANSLATORS;
+        return translators[id];
     }
 
     /**
-     * Plays all the translators after the packet was received by server
-     * @param connection connection that sent the packet
-     * @param packet packet
+     * Adds new translator to the table, the table is replaced with
+     * an updated copy.
+     * @param translator translator to register
      */
-    protected void playInAfter(@NotNull ClientConnection connection, @NotNull Packet packet) {
-        for(PacketTranslator<? extends Packet> translator : IN_TRANSLATORS.get(packet.getClass()))
-            translator.rawTranslateAfter(connection, packet);
+    private synchronized void register(@NotNull PacketTranslator<? extends Packet> translator) {
+        final Class<? extends Packet> packetClass = translator.packetClass();
+        final Packet.PacketState state = PacketFactory.getRegisteredState(packetClass);
+        if(state == null)
+            throw new IllegalArgumentException("Packet " + packetClass.getSimpleName() + " isn't registered");
+        final int id = PacketFactory.getRawIdByPacket(packetClass, state);
+        final PacketTranslator<?>[][][] table = this.translators.clone();
+        PacketTranslator<?>[][] stateTable = table[state.ordinal()];
+        stateTable = Arrays.copyOf(stateTable, Math.max(stateTable.length, id + 1));
+        final PacketTranslator<?>[] current = stateTable[id] != null ? stateTable[id] : NO_TRANSLATORS;
+        final PacketTranslator<?>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = translator;
+        stateTable[id] = updated;
+        table[state.ordinal()] = stateTable;
+        this.translators = table;
     }
 
     /**
-     * Plays all the translators after the packet was sent by server
-     * @param connection connection that received the packet
-     * @param packet packet
+     * Removes translators from the table, the table is replaced with
+     * an updated copy.
+     * @param packetClass class of the packet
+     * @param translator translator to remove, null if all translators of the packet should be removed
      */
-    protected void playOutAfter(@NotNull ClientConnection connection, @NotNull Packet packet) {
-        for(PacketTranslator<? extends Packet> translator : OUT_TRANSLATORS.get(packet.getClass()))
-            translator.rawTranslateAfter(connection, packet);
+    private synchronized void unregister(@NotNull Class<? extends Packet> packetClass, @Nullable PacketTranslator<? extends Packet> translator) {
+        final Packet.PacketState state = PacketFactory.getRegisteredState(packetClass);
+        if(state == null) return;
+        final int id = PacketFactory.getRawIdByPacket(packetClass, state);
+        final PacketTranslator<?>[][][] table = this.translators.clone();
+        final PacketTranslator<?>[][] stateTable = table[state.ordinal()].clone();
+        if(id >= stateTable.length || stateTable[id] == null) return;
+        stateTable[id] = translator == null
+                ? null
+                : Arrays.stream(stateTable[id]).filter(registered -> registered != translator).toArray(PacketTranslator[]::new);
+        table[state.ordinal()] = stateTable;
+        this.translators = table;
     }
 
 }
@@ -1,7 +1,6 @@
 package me.pesekjak.machine.utils;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.*;
 import me.pesekjak.machine.auth.*;
 import me.pesekjak.machine.entities.player.PlayerTextures;
 import me.pesekjak.machine.entities.player.PlayerTexturesImpl;
@@ -34,6 +33,9 @@ public class FriendlyByteBuf implements ServerBuffer {
     private static final int SEGMENT_BITS = 0x7F;
     private static final int CONTINUE_BIT = 0x80;
 
+    public static final int PADDED_VAR_INT_SIZE = 3;
+    public static final int MAX_PADDED_VAR_INT = (1 << 7 * PADDED_VAR_INT_SIZE) - 1;
+
     public FriendlyByteBuf() {
         this(new byte[0]);
     }
@@ -51,25 +53,40 @@ public class FriendlyByteBuf implements ServerBuffer {
         this(dataInputStream.readAllBytes());
     }
 
+    /**
+     * Creates new buffer backed by a pooled direct buffer, such buffer
+     * has to be released using {@link FriendlyByteBuf#release()} once it's no
+     * longer used.
+     * @return new pooled buffer
+     */
+    public static @NotNull FriendlyByteBuf pooled() {
+        return new FriendlyByteBuf(PooledByteBufAllocator.DEFAULT.directBuffer());
+    }
+
+    /**
+     * @return netty buffer wrapped by this buffer
+     */
+    public @NotNull ByteBuf unwrap() {
+        return buf;
+    }
+
+    /**
+     * Releases the wrapped buffer, should be used for pooled buffers
+     * once they're no longer used.
+     */
+    public void release() {
+        buf.release();
+    }
+
     @Override
     public byte @NotNull [] bytes() {
-        final int length = buf.writerIndex();
-        final int reader = buf.readerIndex();
-        buf.readerIndex(0);
-        final byte[] bytes = new byte[length];
-        for(int i = 0; i < length; i++)
-            bytes[i] = readByte();
-        buf.readerIndex(reader);
-        return bytes;
+        return ByteBufUtil.getBytes(buf, 0, buf.writerIndex());
     }
 
     @Override
     public byte @NotNull [] finish() {
-        final int length = buf.writerIndex();
-        final int reader = buf.readerIndex();
-        byte[] bytes = new byte[length - reader];
-        for(int i = 0; i < length - reader; i++)
-            bytes[i] = readByte();
+        final byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
         return bytes;
     }
 
@@ -83,7 +100,7 @@ public class FriendlyByteBuf implements ServerBuffer {
 
     @Override
     public @NotNull DataOutputStream writeToStream(@NotNull DataOutputStream stream) throws IOException {
-        stream.write(bytes());
+        buf.getBytes(0, stream, buf.writerIndex());
         return stream;
     }
 
@@ -118,8 +135,7 @@ public class FriendlyByteBuf implements ServerBuffer {
     @Override
     public byte @NotNull [] readBytes(int length) {
         final byte[] result = new byte[length];
-        for(int i = 0; i < length; i++)
-            result[i] = readByte();
+        buf.readBytes(result);
         return result;
     }
 
@@ -133,16 +149,14 @@ public class FriendlyByteBuf implements ServerBuffer {
     public byte @NotNull [] readByteArray() {
         int length = readVarInt();
         byte[] bytes = new byte[length];
-        for (int i = 0; i < length; i++)
-            bytes[i] = readByte();
+        buf.readBytes(bytes);
         return bytes;
     }
 
     @Override
     public @NotNull FriendlyByteBuf writeByteArray(byte @NotNull [] bytes) {
         writeVarInt(bytes.length);
-        for (byte b : bytes)
-            writeByte(b);
+        buf.writeBytes(bytes);
         return this;
     }
 
@@ -245,6 +259,36 @@ public class FriendlyByteBuf implements ServerBuffer {
         }
     }
 
+    /**
+     * Returns number of bytes needed to write given value as VarInt.
+     * @param value value
+     * @return size of the VarInt
+     */
+    public static int varIntSize(int value) {
+        for(int size = 1; size < 5; size++) {
+            if((value & (-1 << size * 7)) == 0) return size;
+        }
+        return 5;
+    }
+
+    /**
+     * Sets VarInt padded to {@link FriendlyByteBuf#PADDED_VAR_INT_SIZE} bytes at given index,
+     * doesn't change the writer index of the buffer. Used to backfill
+     * sizes of data that are unknown before the data are written.
+     * @param index index to set the VarInt at
+     * @param value value of the VarInt
+     * @return this
+     * @throws IllegalArgumentException if the value doesn't fit into the padded VarInt
+     */
+    public @NotNull FriendlyByteBuf setPaddedVarInt(int index, int value) {
+        if(value < 0 || value > MAX_PADDED_VAR_INT)
+            throw new IllegalArgumentException("Value " + value + " doesn't fit into " + PADDED_VAR_INT_SIZE + " bytes VarInt");
+        buf.setByte(index, (value & SEGMENT_BITS) | CONTINUE_BIT);
+        buf.setByte(index + 1, ((value >>> 7) & SEGMENT_BITS) | CONTINUE_BIT);
+        buf.setByte(index + 2, value >>> 14);
+        return this;
+    }
+
     @Override
     public int @NotNull [] readVarIntArray() {
         int length = readVarInt();
@@ -293,10 +337,9 @@ public class FriendlyByteBuf implements ServerBuffer {
     public @NotNull String readString(@NotNull Charset charset) {
         final int length = readVarInt();
         if (length < 0) throw new IllegalStateException();
-        final byte[] bytes = new byte[length];
-        for (int i = 0; i < length; i++)
-            bytes[i] = buf.readByte();
-        return new String(bytes, charset);
+        final String value = buf.toString(buf.readerIndex(), length, charset);
+        buf.skipBytes(length);
+        return value;
     }
 
     @Override
@@ -354,8 +397,8 @@ public class FriendlyByteBuf implements ServerBuffer {
 
     @Override
     public @NotNull NBTCompound readNBT() {
-        final byte[] bytes = buf.array();
-        final ByteArrayInputStream is = new ByteArrayInputStream(bytes, buf.readerIndex(), bytes.length);
+        // stream moves with the reader index of the buffer
+        final ByteBufInputStream is = new ByteBufInputStream(buf);
         NBTCompound compound;
         try {
             compound = new NBTCompound();
@@ -363,21 +406,12 @@ public class FriendlyByteBuf implements ServerBuffer {
         } catch (Exception exception) {
             throw new RuntimeException(exception);
         }
-        buf.readerIndex(bytes.length - is.available());
-        try {
-            is.close();
-        } catch (IOException ignored) { }
         return compound;
     }
 
     @Override
     public @NotNull FriendlyByteBuf writeNBT(@NotNull NBTCompound compound) {
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        compound.writeAll(os);
-        buf.writeBytes(os.toByteArray());
-        try {
-            os.close();
-        } catch (IOException ignored) { }
+        compound.writeAll(new ByteBufOutputStream(buf));
         return this;
     }
 
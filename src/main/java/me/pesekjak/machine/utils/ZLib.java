@@ -1,19 +1,49 @@
 package me.pesekjak.machine.utils;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.Getter;
 import lombok.experimental.UtilityClass;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Range;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Utility class used for ZLib compression.
+ * <p>
+ * Deflaters and inflaters are pooled and reused between the calls,
+ * their native resources are released with {@link ZLib#close()}.
  */
 @UtilityClass
 public class ZLib {
 
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    @Getter
+    private static volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Changes the compression level used for compression, lower levels are
+     * faster but produce larger output.
+     * @param level new compression level, -1 for the default level
+     */
+    public static void setCompressionLevel(@Range(from = -1, to = 9) int level) {
+        if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        compressionLevel = level;
+    }
+
     /**
      * Compresses an array of bytes using ZLib.
      * @param data The array of bytes to compress
@@ -21,11 +51,37 @@ public class ZLib {
      * @throws IOException if an I/O error occurs
      */
     public static byte @NotNull [] compress(byte @NotNull [] data) throws IOException {
-        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        final DeflaterOutputStream outputStream = new DeflaterOutputStream(bytes);
-        outputStream.write(data);
-        outputStream.finish();
-        return bytes.toByteArray();
+        final ByteBuf output = Unpooled.buffer(Math.min(data.length, BUFFER_SIZE));
+        compress(Unpooled.wrappedBuffer(data), output);
+        return ByteBufUtil.getBytes(output);
+    }
+
+    /**
+     * Compresses all readable bytes of the input buffer and writes
+     * them into the output buffer.
+     * @param input buffer with the data to compress
+     * @param output buffer to write the compressed data into
+     * @return number of compressed bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    public static int compress(@NotNull ByteBuf input, @NotNull ByteBuf output) throws IOException {
+        final Deflater deflater = acquireDeflater();
+        final int start = output.writerIndex();
+        try {
+            deflater.setInput(input.nioBuffer());
+            deflater.finish();
+            while(!deflater.finished()) {
+                output.ensureWritable(BUFFER_SIZE);
+                final ByteBuffer target = output.nioBuffer(output.writerIndex(), output.writableBytes());
+                output.writerIndex(output.writerIndex() + deflater.deflate(target));
+            }
+            input.skipBytes(input.readableBytes());
+        } catch (RuntimeException exception) {
+            throw new IOException(exception);
+        } finally {
+            DEFLATERS.add(deflater);
+        }
+        return output.writerIndex() - start;
     }
 
     /**
@@ -35,11 +91,78 @@ public class ZLib {
      * @throws IOException if an I/O error occurs
      */
     public static byte @NotNull [] decompress(byte @NotNull [] data) throws IOException {
-        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        final InflaterOutputStream outputStream = new InflaterOutputStream(bytes);
-        outputStream.write(data);
-        outputStream.finish();
-        return bytes.toByteArray();
+        final ByteBuf output = Unpooled.buffer(data.length * 2);
+        decompress(Unpooled.wrappedBuffer(data), output, Integer.MAX_VALUE);
+        return ByteBufUtil.getBytes(output);
+    }
+
+    /**
+     * Decompresses all readable bytes of the input buffer and writes
+     * them into the output buffer.
+     * @param input buffer with the compressed data
+     * @param output buffer to write the decompressed data into
+     * @param maxSize maximum number of decompressed bytes
+     * @return number of decompressed bytes written
+     * @throws IOException if the data are malformed or exceed the maximum size
+     */
+    public static int decompress(@NotNull ByteBuf input, @NotNull ByteBuf output, int maxSize) throws IOException {
+        final Inflater inflater = acquireInflater();
+        final int start = output.writerIndex();
+        try {
+            inflater.setInput(input.nioBuffer());
+            while(!inflater.finished()) {
+                if(inflater.needsInput() || inflater.needsDictionary())
+                    throw new IOException("Compressed data are incomplete");
+                if(output.writerIndex() - start >= maxSize)
+                    throw new IOException("Decompressed data exceed the maximum size of " + maxSize + " bytes");
+                output.ensureWritable(Math.min(BUFFER_SIZE, maxSize - (output.writerIndex() - start)));
+                final int limit = Math.min(output.writableBytes(), maxSize - (output.writerIndex() - start));
+                final ByteBuffer target = output.nioBuffer(output.writerIndex(), limit);
+                output.writerIndex(output.writerIndex() + inflater.inflate(target));
+            }
+            input.skipBytes(input.readableBytes());
+        } catch (DataFormatException exception) {
+            throw new IOException(exception);
+        } finally {
+            INFLATERS.add(inflater);
+        }
+        return output.writerIndex() - start;
+    }
+
+    /**
+     * Ends all pooled deflaters and inflaters and releases their native resources,
+     * should be called once the server no longer compresses any data.
+     */
+    public static void close() {
+        Deflater deflater;
+        while((deflater = DEFLATERS.poll()) != null)
+            deflater.end();
+        Inflater inflater;
+        while((inflater = INFLATERS.poll()) != null)
+            inflater.end();
+    }
+
+    /**
+     * @return reset deflater from the pool using the current compression level
+     */
+    private static @NotNull Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if(deflater == null)
+            deflater = new Deflater(compressionLevel);
+        else
+            deflater.reset();
+        deflater.setLevel(compressionLevel);
+        return deflater;
+    }
+
+    /**
+     * @return reset inflater from the pool
+     */
+    private static @NotNull Inflater acquireInflater() {
+        final Inflater inflater = INFLATERS.poll();
+        if(inflater == null) return new Inflater();
+        inflater.reset();
+        return inflater;
     }
 
 }
@@ -0,0 +1,108 @@
+package me.pesekjak.machine.world;
+
+import me.pesekjak.machine.Machine;
+import me.pesekjak.machine.server.schedule.Scheduler;
+import me.pesekjak.machine.world.region.Region;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves the server worlds in the background.
+ * <p>
+ * Snapshots of the changed chunks are taken on the main thread, which only
+ * copies the packed palettes of the changed sections, the regions are then
+ * written by a dedicated executor that limits how many regions are written
+ * at the same time.
+ */
+public class AutoSaver {
+
+    private final @NotNull Machine server;
+    private final @NotNull ExecutorService executor;
+    private final AtomicBoolean saving = new AtomicBoolean();
+
+    /**
+     * @param server server of the worlds
+     * @param threads max number of regions written at the same time
+     */
+    public AutoSaver(@NotNull Machine server, int threads) {
+        this.server = server;
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "Region Saver #" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts saving the worlds periodically, if the previous save
+     * hasn't finished yet, the next one is skipped.
+     * @param period period between the saves in milliseconds
+     */
+    public void start(long period) {
+        Scheduler.task((input, session) -> {
+                    if(!saving.compareAndSet(false, true)) return null;
+                    save().whenComplete((ignored, exception) -> saving.set(false));
+                    return null;
+                })
+                .sync()
+                .repeat(true)
+                .delay(period)
+                .period(period)
+                .run(server.getScheduler());
+    }
+
+    /**
+     * Takes snapshots of all changed chunks of the loaded server worlds and
+     * writes them in the background, has to be called from the main thread.
+     * @return future completed once all snapshots are written
+     */
+    public @NotNull CompletableFuture<Void> save() {
+        final long start = System.nanoTime();
+        final List<Region> regions = new ArrayList<>();
+        for(World world : server.getWorldManager().getWorlds()) {
+            if(!(world instanceof ServerWorld serverWorld) || !world.isLoaded()) continue;
+            regions.addAll(serverWorld.snapshot());
+        }
+        final long snapshotTime = System.nanoTime() - start;
+        if(regions.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        final AtomicInteger chunks = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final CompletableFuture<?>[] writes = new CompletableFuture[regions.size()];
+        for(int i = 0; i < writes.length; i++) {
+            final Region region = regions.get(i);
+            writes[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    final Region.FlushResult result = region.flush();
+                    chunks.addAndGet(result.chunks());
+                    bytes.addAndGet(result.bytes());
+                } catch (Exception exception) {
+                    server.getExceptionHandler().handle(exception, "Failed to save region " + region.getX() + ", " + region.getZ()
+                            + " of world '" + region.getWorld().getName() + "'");
+                }
+            }, executor);
+        }
+        return CompletableFuture.allOf(writes).thenRun(() -> server.getConsole().info("Saved " + chunks.get() + " chunks in "
+                + regions.size() + " regions (" + bytes.get() / 1024 + " KiB of block data) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, snapshots took "
+                + TimeUnit.NANOSECONDS.toMillis(snapshotTime) + "ms on the main thread"));
+    }
+
+    /**
+     * Waits for the running saves to finish and stops the executor.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        if(!executor.awaitTermination(1, TimeUnit.MINUTES))
+            server.getConsole().warning("Region saves didn't finish in time");
+    }
+
+}
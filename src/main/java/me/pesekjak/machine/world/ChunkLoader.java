@@ -0,0 +1,121 @@
+package me.pesekjak.machine.world;
+
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads and generates chunks of a world in parallel using a work-stealing pool.
+ * <p>
+ * Requests for a chunk that is already being loaded share the same future,
+ * pending requests are processed by their priority, requests with lower
+ * priority value are loaded first. Once the loader is closed, it rejects
+ * all requests, a world creates new loader each time it's loaded.
+ */
+class ChunkLoader {
+
+    private final @NotNull ServerWorld world;
+    private final @NotNull ForkJoinPool pool;
+    private final Map<Long, CompletableFuture<Chunk>> loading = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Request> pending = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    ChunkLoader(@NotNull ServerWorld world, int parallelism) {
+        this.world = world;
+        pool = new ForkJoinPool(parallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Chunk Loader #" + thread.getPoolIndex());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Requests a chunk to be loaded, if the chunk is already being loaded,
+     * the existing request is returned.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param priority priority of the request, lower values are loaded first
+     * @return future completed once the chunk is loaded, failed if the loader is closed
+     */
+    @NotNull CompletableFuture<Chunk> load(int chunkX, int chunkZ, int priority) {
+        if(pool.isShutdown())
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Chunk loader of world '" + world.getName() + "' is closed"));
+        final long key = ChunkUtils.getChunkKey(chunkX, chunkZ);
+        final CompletableFuture<Chunk> future = new CompletableFuture<>();
+        final CompletableFuture<Chunk> existing = loading.putIfAbsent(key, future);
+        if(existing != null) return existing;
+        final Request request = new Request(chunkX, chunkZ, priority, sequence.getAndIncrement(), future);
+        pending.add(request);
+        try {
+            pool.execute(this::loadNext);
+        } catch (RejectedExecutionException exception) { // closed meanwhile
+            pending.remove(request);
+            loading.remove(key, future);
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    /**
+     * Cancels all requests that haven't started loading yet and waits until
+     * the chunks that are being loaded are loaded, following requests are rejected.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close() throws InterruptedException {
+        pool.shutdown();
+        cancelPending();
+        if(!pool.awaitTermination(1, TimeUnit.MINUTES))
+            world.getServer().getConsole().warning("Chunk loads of world '" + world.getName() + "' didn't finish in time");
+    }
+
+    /**
+     * Cancels all requests that haven't started loading yet.
+     */
+    private void cancelPending() {
+        Request request;
+        while((request = pending.poll()) != null) {
+            request.future().cancel(false);
+            loading.remove(ChunkUtils.getChunkKey(request.chunkX(), request.chunkZ()), request.future());
+        }
+    }
+
+    /**
+     * Loads the chunk of the pending request with the highest priority, every
+     * submitted task loads one chunk, not necessarily the one it has been submitted for.
+     */
+    private void loadNext() {
+        final Request request = pending.poll();
+        if(request == null) return;
+        try {
+            request.future().complete(world.loadChunk(request.chunkX(), request.chunkZ()));
+        } catch (Throwable throwable) {
+            request.future().completeExceptionally(throwable);
+        } finally {
+            loading.remove(ChunkUtils.getChunkKey(request.chunkX(), request.chunkZ()), request.future());
+        }
+    }
+
+    /**
+     * Pending request for a chunk.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param priority priority of the request
+     * @param sequence order of the request, requests with same priority are loaded in order
+     * @param future future of the request
+     */
+    private record Request(int chunkX, int chunkZ, int priority, long sequence,
+                           @NotNull CompletableFuture<Chunk> future) implements Comparable<Request> {
+
+        @Override
+        public int compareTo(@NotNull Request other) {
+            final int result = Integer.compare(priority, other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
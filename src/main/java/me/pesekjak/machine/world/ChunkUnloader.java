@@ -0,0 +1,149 @@
+package me.pesekjak.machine.world;
+
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkTicket;
+import me.pesekjak.machine.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the chunk tickets of a world and unloads chunks that have
+ * no tickets once they've been idle for longer than the unload delay.
+ * <p>
+ * Recently unloaded chunks are kept in a cache of limited size, least recently
+ * unloaded chunks are dropped first, so chunks that are needed again shortly
+ * after they've been unloaded don't have to be read from the region file.
+ */
+class ChunkUnloader {
+
+    private static final int TICKET_TYPES = ChunkTicket.values().length;
+
+    private final @NotNull ServerWorld world;
+    private final long unloadDelay;
+    private final int cacheSize;
+
+    private final Map<Long, int[]> tickets = new ConcurrentHashMap<>();
+    private final Map<Long, Long> idleSince = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Long, Chunk> cache;
+
+    /**
+     * @param world world of the chunks
+     * @param unloadDelay delay in milliseconds before an idle chunk is unloaded
+     * @param cacheSize number of unloaded chunks kept in memory
+     */
+    ChunkUnloader(@NotNull ServerWorld world, long unloadDelay, int cacheSize) {
+        this.world = world;
+        this.unloadDelay = unloadDelay;
+        this.cacheSize = cacheSize;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest) {
+                return size() > ChunkUnloader.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Adds a ticket to a chunk.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param ticket ticket to add
+     */
+    void addTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket) {
+        final long key = ChunkUtils.getChunkKey(chunkX, chunkZ);
+        tickets.compute(key, (k, counts) -> {
+            if(counts == null) counts = new int[TICKET_TYPES];
+            counts[ticket.ordinal()]++;
+            return counts;
+        });
+        idleSince.remove(key);
+    }
+
+    /**
+     * Removes a ticket from a chunk, if the chunk has no tickets left,
+     * it becomes idle.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param ticket ticket to remove
+     */
+    void removeTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket) {
+        final long key = ChunkUtils.getChunkKey(chunkX, chunkZ);
+        tickets.computeIfPresent(key, (k, counts) -> {
+            if(counts[ticket.ordinal()] > 0) counts[ticket.ordinal()]--;
+            for(int count : counts)
+                if(count != 0) return counts;
+            idleSince.put(key, System.currentTimeMillis());
+            return null;
+        });
+    }
+
+    /**
+     * Called once a chunk is loaded, chunk that has been loaded without any
+     * tickets becomes idle.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     */
+    void loaded(int chunkX, int chunkZ) {
+        final long key = ChunkUtils.getChunkKey(chunkX, chunkZ);
+        if(!tickets.containsKey(key))
+            idleSince.putIfAbsent(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes chunk from the cache of unloaded chunks.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return cached chunk, null if the chunk isn't cached
+     */
+    @Nullable Chunk takeCached(int chunkX, int chunkZ) {
+        synchronized (cache) {
+            return cache.remove(ChunkUtils.getChunkKey(chunkX, chunkZ));
+        }
+    }
+
+    /**
+     * Unloads all chunks without tickets that have been idle for longer than
+     * the unload delay. Chunks that got a ticket while they were unloading
+     * are put back to their regions.
+     */
+    void unloadIdle() {
+        final long now = System.currentTimeMillis();
+        for(Map.Entry<Long, Long> entry : idleSince.entrySet()) {
+            if(now - entry.getValue() < unloadDelay) continue;
+            final long key = entry.getKey();
+            if(!idleSince.remove(key, entry.getValue()) || tickets.containsKey(key)) continue;
+            final int chunkX = (int) (key >> 32);
+            final int chunkZ = (int) key;
+            try {
+                final Chunk chunk = world.unloadChunk(chunkX, chunkZ);
+                if(chunk == null) continue;
+                if(tickets.containsKey(key)) { // ticket added while the chunk was unloading
+                    world.restoreChunk(chunkX, chunkZ, chunk);
+                    continue;
+                }
+                if(cacheSize == 0) continue;
+                synchronized (cache) {
+                    cache.put(key, chunk);
+                }
+            } catch (Exception exception) {
+                world.getServer().getExceptionHandler().handle(exception, "Failed to unload chunk at " + chunkX + ", " + chunkZ);
+            }
+        }
+    }
+
+    /**
+     * Forgets all tickets, idle chunks and cached chunks.
+     */
+    void clear() {
+        tickets.clear();
+        idleSince.clear();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+}
@@ -1,29 +1,31 @@
 package me.pesekjak.machine.world;
 
-import io.netty.util.collection.IntObjectHashMap;
 import lombok.Getter;
 import lombok.Synchronized;
 import me.pesekjak.machine.Machine;
 import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkTicket;
 import me.pesekjak.machine.chunk.ChunkUtils;
 import me.pesekjak.machine.entities.Player;
 import me.pesekjak.machine.entities.Entity;
+import me.pesekjak.machine.server.schedule.Scheduler;
 import me.pesekjak.machine.utils.FileUtils;
 import me.pesekjak.machine.utils.NamespacedKey;
-import me.pesekjak.machine.world.blocks.BlockType;
-import me.pesekjak.machine.world.blocks.BlockTypeImpl;
 import me.pesekjak.machine.world.dimensions.DimensionType;
 import me.pesekjak.machine.world.generation.FlatStoneGenerator;
 import me.pesekjak.machine.world.generation.Generator;
-import me.pesekjak.machine.world.region.AnvilRegion;
 import me.pesekjak.machine.world.region.Region;
+import me.pesekjak.machine.world.region.RegionConverter;
+import me.pesekjak.machine.world.region.RegionFormat;
 import org.jetbrains.annotations.NotNull;
-import org.jglrxavpok.hephaistos.mca.AnvilException;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Set;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
@@ -33,10 +35,22 @@ public class ServerWorld extends WorldImpl {
 
     public final static String DEFAULT_WORLD_FOLDER = "level";
 
+    private final static int VIEW_RANGE = 3; // getServer().getViewDistance();
+    private final static int SPAWN_RANGE = 1;
+    private final static long UNLOAD_CHECK_PERIOD = 1000;
+
     @Getter
     private final @NotNull File folder;
+    @Getter
+    private final @NotNull RegionFormat regionFormat;
     private final @NotNull File regionFolder;
-    private final @NotNull IntObjectHashMap<Region> regionMap = new IntObjectHashMap<>();
+    private final @NotNull Map<Long, Region> regionMap = new ConcurrentHashMap<>();
+    private final Object regionLock = new Object();
+    private volatile @Nullable ChunkLoader chunkLoader;
+    private final @NotNull ChunkUnloader chunkUnloader = new ChunkUnloader(this,
+            getServer().getProperties().getChunkUnloadDelay() * 1000L,
+            getServer().getProperties().getChunkCacheSize());
+    private final @NotNull Map<Player, Long> playerViews = new ConcurrentHashMap<>();
 
     protected final @NotNull Set<Entity> entityList = new CopyOnWriteArraySet<>();
 
@@ -61,8 +75,13 @@ public class ServerWorld extends WorldImpl {
     }
 
     public ServerWorld(@NotNull File folder, @NotNull Machine server, @NotNull NamespacedKey name, @NotNull DimensionType dimensionType, @NotNull WorldType worldType, long seed) {
+        this(folder, server, name, dimensionType, worldType, seed, RegionFormat.ANVIL);
+    }
+
+    public ServerWorld(@NotNull File folder, @NotNull Machine server, @NotNull NamespacedKey name, @NotNull DimensionType dimensionType, @NotNull WorldType worldType, long seed, @NotNull RegionFormat regionFormat) {
         super(server, name, FileUtils.getOrCreateUUID(folder), dimensionType, worldType, seed);
         this.folder = folder;
+        this.regionFormat = regionFormat;
         regionFolder = new File(folder.getPath() + "/region/");
     }
 
@@ -82,7 +101,21 @@ public class ServerWorld extends WorldImpl {
         if(loaded) throw new UnsupportedOperationException();
         if(!regionFolder.mkdirs() && !regionFolder.exists())
             throw new IOException();
+        chunkLoader = new ChunkLoader(this, Runtime.getRuntime().availableProcessors());
         loaded = true;
+        updateSpawnTickets(getWorldSpawn(), true);
+        Scheduler.task((input, session) -> {
+                    if(!loaded) {
+                        session.stop();
+                        return null;
+                    }
+                    chunkUnloader.unloadIdle();
+                    return null;
+                })
+                .async()
+                .repeat(true)
+                .period(UNLOAD_CHECK_PERIOD)
+                .run(getServer().getScheduler());
         getServer().getConsole().info("Loaded world '" + getName() + "'");
     }
 
@@ -91,8 +124,32 @@ public class ServerWorld extends WorldImpl {
     public void unload() throws IOException {
         if(!loaded) throw new UnsupportedOperationException();
         loaded = false;
+        final ChunkLoader chunkLoader = this.chunkLoader;
+        this.chunkLoader = null;
+        if(chunkLoader != null) {
+            try {
+                chunkLoader.close(); // chunks that are being loaded can't be written after the regions are closed
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the chunk loads of world '" + getName() + "'");
+            }
+        }
         save();
-        regionMap.clear();
+        IOException failure = null;
+        synchronized (regionLock) {
+            for(Region region : regionMap.values()) {
+                try {
+                    region.close();
+                } catch (IOException exception) {
+                    if(failure == null) failure = exception;
+                    else failure.addSuppressed(exception);
+                }
+            }
+            regionMap.clear();
+        }
+        chunkUnloader.clear();
+        playerViews.clear();
+        if(failure != null) throw failure;
         getServer().getConsole().info("Unloaded world '" + getName() + "'");
     }
 
@@ -100,26 +157,94 @@ public class ServerWorld extends WorldImpl {
     @Synchronized
     public void save() throws IOException {
         getServer().getConsole().info("Saving world '" + getName() + "'...");
+        final long start = System.currentTimeMillis();
+        int chunks = 0;
+        long bytes = 0;
+        for(Region region : regionMap.values()) {
+            region.snapshot();
+            final Region.FlushResult result = region.flush();
+            chunks += result.chunks();
+            bytes += result.bytes();
+        }
+        getServer().getConsole().info("Saved world '" + getName() + "' (" + chunks + " chunks, "
+                + bytes / 1024 + " KiB of block data) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Converts the region files of the world in another format to the
+     * region format of the world, can't be used while the world is loaded.
+     * @param source format of the region files to convert
+     * @return number of converted chunks
+     * @throws IOException if an I/O error occurs during the conversion
+     */
+    @Synchronized
+    public int convertRegions(@NotNull RegionFormat source) throws IOException {
+        if(loaded) throw new UnsupportedOperationException();
+        if(!regionFolder.mkdirs() && !regionFolder.exists())
+            throw new IOException();
+        final long start = System.currentTimeMillis();
+        final int chunks = RegionConverter.convert(this, regionFolder, source, regionFormat);
+        getServer().getConsole().info("Converted " + chunks + " chunks of world '" + getName() + "' from "
+                + source + " to " + regionFormat + " in " + (System.currentTimeMillis() - start) + "ms");
+        return chunks;
+    }
+
+    /**
+     * Takes snapshots of all chunks of the world that changed since they've been
+     * saved last time, can be called from any thread.
+     * @return regions with snapshots waiting to be flushed
+     */
+    public @NotNull List<Region> snapshot() {
+        final List<Region> regions = new ArrayList<>();
         for(Region region : regionMap.values())
-            region.save();
-        getServer().getConsole().info("Saved world '" + getName() + "'");
+            if(region.snapshot() != 0) regions.add(region);
+        return regions;
     }
 
     @Override
     public void loadPlayer(@NotNull Player player) {
-        final byte range = 3; // (byte) getServer().getViewDistance();
-        final Chunk center = getChunk(player.getLocation());
-        for(int x = -range; x < range + 1; x++) {
-            for(int z = -range; z < range + 1; z++) {
-                Chunk chunk = getChunk(center.getChunkX() + x, center.getChunkZ() + z);
-                chunk.sendChunk(player);
+        final BlockPosition position = player.getLocation().toBlockPosition();
+        final int centerX = ChunkUtils.getChunkCoordinate(position.getX());
+        final int centerZ = ChunkUtils.getChunkCoordinate(position.getZ());
+        final Long previous = playerViews.put(player, ChunkUtils.getChunkKey(centerX, centerZ));
+        if(previous != null) updatePlayerTickets(previous, false);
+        updatePlayerTickets(ChunkUtils.getChunkKey(centerX, centerZ), true);
+        for(int x = -VIEW_RANGE; x < VIEW_RANGE + 1; x++) {
+            for(int z = -VIEW_RANGE; z < VIEW_RANGE + 1; z++) {
+                getChunkAsync(centerX + x, centerZ + z, x * x + z * z).whenComplete((chunk, exception) -> {
+                    if(exception != null) {
+                        getServer().getExceptionHandler().handle(exception);
+                        return;
+                    }
+                    chunk.sendChunk(player);
+                });
             }
         }
     }
 
     @Override
     public void unloadPlayer(@NotNull Player player) {
-        // TODO implement player unloading
+        final Long view = playerViews.remove(player);
+        if(view != null) updatePlayerTickets(view, false);
+    }
+
+    @Override
+    public void setWorldSpawn(@NotNull Location location) {
+        final Location previous = getWorldSpawn();
+        super.setWorldSpawn(location);
+        if(!loaded) return;
+        updateSpawnTickets(previous, false);
+        updateSpawnTickets(location, true);
+    }
+
+    @Override
+    public void addTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket) {
+        chunkUnloader.addTicket(chunkX, chunkZ, ticket);
+    }
+
+    @Override
+    public void removeTicket(int chunkX, int chunkZ, @NotNull ChunkTicket ticket) {
+        chunkUnloader.removeTicket(chunkX, chunkZ, ticket);
     }
 
     @Override
@@ -146,37 +271,153 @@ public class ServerWorld extends WorldImpl {
 
     @Override
     public @NotNull Chunk getChunk(int chunkX, int chunkZ) {
-        final int regionX = ChunkUtils.getRegionCoordinate(chunkX);
-        final int regionZ = ChunkUtils.getRegionCoordinate(chunkZ);
-        Region region = regionMap.get(createRegionIndex(regionX, regionZ));
-        if(region == null) {
-            try {
-                File regionFile = new File(regionFolder.getPath() + "/r." + regionX + "." + regionZ + ".mca");
-                if(!regionFile.createNewFile() && !regionFile.exists())
-                    throw new IllegalStateException();
-                region = new AnvilRegion(this, regionFile, regionX, regionZ);
-                regionMap.put(createRegionIndex(regionX, regionZ), region);
-            } catch (AnvilException | IOException e) {
-                throw new RuntimeException(e);
+        final ChunkLoader chunkLoader = getChunkLoader();
+        final Chunk loaded = getOrCreateRegion(chunkX, chunkZ).getLoadedChunk(
+                ChunkUtils.getRegionRelativeCoordinate(chunkX),
+                ChunkUtils.getRegionRelativeCoordinate(chunkZ));
+        if(loaded != null) return loaded;
+        return chunkLoader.load(chunkX, chunkZ, 0).join();
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Chunk> getChunkAsync(int chunkX, int chunkZ, int priority) {
+        final ChunkLoader chunkLoader = getChunkLoader();
+        final Chunk loaded = getOrCreateRegion(chunkX, chunkZ).getLoadedChunk(
+                ChunkUtils.getRegionRelativeCoordinate(chunkX),
+                ChunkUtils.getRegionRelativeCoordinate(chunkZ));
+        if(loaded != null) return CompletableFuture.completedFuture(loaded);
+        return chunkLoader.load(chunkX, chunkZ, priority);
+    }
+
+    /**
+     * Loads or generates chunk at given coordinates on the current thread, used
+     * by the chunk loader of the world.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return loaded chunk
+     */
+    @NotNull Chunk loadChunk(int chunkX, int chunkZ) {
+        final Region region = getOrCreateRegion(chunkX, chunkZ);
+        final int relativeX = ChunkUtils.getRegionRelativeCoordinate(chunkX);
+        final int relativeZ = ChunkUtils.getRegionRelativeCoordinate(chunkZ);
+        final Chunk cached = chunkUnloader.takeCached(chunkX, chunkZ);
+        final Chunk chunk = cached != null
+                ? region.restoreChunk(relativeX, relativeZ, cached)
+                : region.getChunk(relativeX, relativeZ);
+        chunkUnloader.loaded(chunkX, chunkZ);
+        return chunk;
+    }
+
+    /**
+     * Saves and unloads chunk at given coordinates, used by the chunk unloader
+     * of the world.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return unloaded chunk, null if the chunk hasn't been loaded
+     * @throws IOException if an I/O error occurs during saving
+     */
+    @Nullable Chunk unloadChunk(int chunkX, int chunkZ) throws IOException {
+        final Region region = regionMap.get(createRegionIndex(
+                ChunkUtils.getRegionCoordinate(chunkX),
+                ChunkUtils.getRegionCoordinate(chunkZ)));
+        if(region == null) return null;
+        return region.unloadChunk(
+                ChunkUtils.getRegionRelativeCoordinate(chunkX),
+                ChunkUtils.getRegionRelativeCoordinate(chunkZ));
+    }
+
+    /**
+     * Adds chunk that has been unloaded before back to its region, used by the chunk
+     * unloader of the world. If another chunk has been loaded at given coordinates
+     * meanwhile, the loaded chunk is kept.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @param chunk chunk to add
+     */
+    void restoreChunk(int chunkX, int chunkZ, @NotNull Chunk chunk) {
+        final Region region = regionMap.get(createRegionIndex(
+                ChunkUtils.getRegionCoordinate(chunkX),
+                ChunkUtils.getRegionCoordinate(chunkZ)));
+        if(region == null) return;
+        region.restoreChunk(
+                ChunkUtils.getRegionRelativeCoordinate(chunkX),
+                ChunkUtils.getRegionRelativeCoordinate(chunkZ),
+                chunk);
+    }
+
+    /**
+     * Adds or removes player tickets for chunks in view of a player.
+     * @param center key of the chunk in the center of the view
+     * @param add whether the tickets should be added or removed
+     */
+    private void updatePlayerTickets(long center, boolean add) {
+        updateTickets((int) (center >> 32), (int) center, VIEW_RANGE, ChunkTicket.PLAYER, add);
+    }
+
+    /**
+     * Adds or removes spawn tickets for chunks around the world spawn.
+     * @param spawn world spawn
+     * @param add whether the tickets should be added or removed
+     */
+    private void updateSpawnTickets(@NotNull Location spawn, boolean add) {
+        final BlockPosition position = spawn.toBlockPosition();
+        updateTickets(ChunkUtils.getChunkCoordinate(position.getX()), ChunkUtils.getChunkCoordinate(position.getZ()),
+                SPAWN_RANGE, ChunkTicket.SPAWN, add);
+    }
+
+    /**
+     * Adds or removes tickets for a square of chunks.
+     * @param centerX x coordinate of the chunk in the center
+     * @param centerZ z coordinate of the chunk in the center
+     * @param range range of the square
+     * @param ticket ticket to add or remove
+     * @param add whether the tickets should be added or removed
+     */
+    private void updateTickets(int centerX, int centerZ, int range, @NotNull ChunkTicket ticket, boolean add) {
+        for(int x = -range; x < range + 1; x++) {
+            for(int z = -range; z < range + 1; z++) {
+                if(add)
+                    addTicket(centerX + x, centerZ + z, ticket);
+                else
+                    removeTicket(centerX + x, centerZ + z, ticket);
             }
         }
+    }
 
-        final int relativeX = Math.abs((chunkX + 32) % 32);
-        final int relativeZ = Math.abs((chunkZ + 32) % 32);
-
-        boolean generation = region.shouldGenerate(relativeX, relativeZ);
-        Chunk chunk = region.getChunk(Math.abs((chunkX + 32) % 32), Math.abs((chunkZ + 32) % 32));
-        if(!generation) return chunk;
-        final int minY = getDimensionType().getMinY();
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                for (int y = 0; y < getDimensionType().getHeight(); y++) {
-                    final BlockType type = getGenerator().generate(new BlockPosition(Chunk.CHUNK_SIZE_X * chunkX + x, y + 1 + minY, Chunk.CHUNK_SIZE_Z * chunkZ + z));
-                    chunk.setBlock(x, y, z, type, BlockTypeImpl.CreateReason.GENERATED, null, null);
+    /**
+     * @return chunk loader of the world
+     * @throws IllegalStateException if the world isn't loaded
+     */
+    private @NotNull ChunkLoader getChunkLoader() {
+        final ChunkLoader chunkLoader = this.chunkLoader;
+        if(chunkLoader == null) throw new IllegalStateException("World '" + getName() + "' isn't loaded");
+        return chunkLoader;
+    }
+
+    /**
+     * Returns region of the chunk at given coordinates, if the region isn't
+     * loaded yet, its file is opened or created. Concurrent calls for the same
+     * region open its file only once, regions aren't opened once the world
+     * is unloaded.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return region of the chunk
+     */
+    private @NotNull Region getOrCreateRegion(int chunkX, int chunkZ) {
+        final int regionX = ChunkUtils.getRegionCoordinate(chunkX);
+        final int regionZ = ChunkUtils.getRegionCoordinate(chunkZ);
+        final Region region = regionMap.get(createRegionIndex(regionX, regionZ));
+        if(region != null) return region;
+        synchronized (regionLock) {
+            if(!loaded) throw new IllegalStateException("World '" + getName() + "' isn't loaded");
+            return regionMap.computeIfAbsent(createRegionIndex(regionX, regionZ), index -> {
+                try {
+                    return regionFormat.open(this, regionFolder, regionX, regionZ);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
-            }
+            });
         }
-        return chunk;
     }
 
     /**
@@ -184,14 +425,8 @@ public class ServerWorld extends WorldImpl {
      * @param regionZ z coordinate of the region
      * @return unique index for a region at given coordinates
      */
-    private int createRegionIndex(int regionX, int regionZ) {
-        if(regionX > 0x7FFF || regionZ > 0x7FFF) throw new UnsupportedOperationException();
-        int index = 0;
-        if(regionX < 0) index |= (1 << 31);
-        if(regionZ < 0) index |= (1 << 15);
-        index |= (Math.abs(regionX) << 16);
-        index |= Math.abs(regionZ);
-        return index;
+    private static long createRegionIndex(int regionX, int regionZ) {
+        return (long) regionX << 32 | regionZ & 0xFFFFFFFFL;
     }
 
 }
@@ -39,7 +39,7 @@ public abstract class WorldImpl implements World {
     private final long seed;
     private @NotNull Difficulty difficulty = Difficulty.DEFAULT_DIFFICULTY;
     private @NotNull Location worldSpawn = Location.of(0, 0, 0, this);
-    protected boolean loaded = false;
+    protected volatile boolean loaded = false;
 
     @Override
     public void setBlock(@NotNull BlockType blockType, @NotNull BlockPosition position, @Nullable BlockType.CreateReason reason, @Nullable BlockType.DestroyReason replaceReason, @Nullable Entity source) {
@@ -17,6 +17,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class BlockManagerImpl implements BlockManager {
 
     private final @NotNull Map<NamespacedKey, BlockType> blocks = new ConcurrentHashMap<>();
+    private final @NotNull Map<BlockType, Integer> ids = new ConcurrentHashMap<>();
+    private volatile BlockType @NotNull [] byId = new BlockType[1]; // 0 is reserved for no block
     @Getter
     private final @NotNull Machine server;
 
@@ -43,10 +45,15 @@ public class BlockManagerImpl implements BlockManager {
     }
 
     @Override
-    public void addBlock(@NotNull BlockType blockType) {
+    public synchronized void addBlock(@NotNull BlockType blockType) {
         if(blocks.containsKey(blockType.getName()))
             throw new IllegalStateException("Block '" + blockType.getName() + "' is already registered");
         blocks.put(blockType.getName(), blockType);
+        if(ids.containsKey(blockType)) return;
+        final BlockType[] byId = Arrays.copyOf(this.byId, this.byId.length + 1);
+        byId[byId.length - 1] = blockType;
+        ids.put(blockType, byId.length - 1);
+        this.byId = byId;
     }
 
     @Override
@@ -69,6 +76,19 @@ public class BlockManagerImpl implements BlockManager {
         return blocks.get(name);
     }
 
+    @Override
+    public @Nullable BlockType getBlockType(int id) {
+        final BlockType[] byId = this.byId;
+        if(id <= 0 || id >= byId.length) return null;
+        return byId[id];
+    }
+
+    @Override
+    public int getBlockId(@NotNull BlockType blockType) {
+        final Integer id = ids.get(blockType);
+        return id != null ? id : -1;
+    }
+
     @Override
     public @NotNull Set<BlockType> getBlocks() {
         return Set.copyOf(blocks.values());
@@ -50,6 +50,7 @@ public class BlockTypeImpl implements BlockType {
         @Builder.Default private boolean solidBlock = true;
         private boolean transparent;
         private boolean dynamicShape;
+        private boolean stateful;
 
     }
 
@@ -29,13 +29,11 @@ public class DynamicVisual implements BlockVisual {
         this.blockData = blockData;
         final BlockPosition position = source.getPosition();
         final int offset = source.getWorld().getDimensionType().getMinY();
-        source.getWorld().getChunk(position)
-                .getSectionAt(position.getY() - offset)
-                .getBlockPalette().set(
-                        ChunkUtils.getSectionRelativeCoordinate(position.getX()),
-                        ChunkUtils.getSectionRelativeCoordinate(position.getY() - offset),
-                        ChunkUtils.getSectionRelativeCoordinate(position.getZ()),
-                        blockData.getId());
+        source.getWorld().getChunk(position).setVisual(
+                ChunkUtils.getSectionRelativeCoordinate(position.getX()),
+                position.getY() - offset,
+                ChunkUtils.getSectionRelativeCoordinate(position.getZ()),
+                this);
     }
 
 }
@@ -2,6 +2,7 @@ package me.pesekjak.machine.world.generation;
 
 import lombok.Getter;
 import me.pesekjak.machine.Machine;
+import me.pesekjak.machine.chunk.Chunk;
 import me.pesekjak.machine.utils.NamespacedKey;
 import me.pesekjak.machine.world.BlockPosition;
 import me.pesekjak.machine.world.blocks.BlockManager;
@@ -37,4 +38,16 @@ public class FlatStoneGenerator implements Generator {
         return stone;
     }
 
+    @Override
+    public void generate(@NotNull GenerationUnit unit) {
+        final int bottom = unit.getBottom();
+        if(bottom > 1) {
+            unit.fill(air);
+        } else if(bottom + Chunk.CHUNK_SECTION_SIZE <= 2) {
+            unit.fill(stone);
+        } else {
+            unit.setAll((x, y, z) -> bottom + y > 1 ? air : stone);
+        }
+    }
+
 }
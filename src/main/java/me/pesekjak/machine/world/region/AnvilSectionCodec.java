@@ -0,0 +1,198 @@
+package me.pesekjak.machine.world.region;
+
+import me.pesekjak.machine.chunk.ChunkSnapshot;
+import me.pesekjak.machine.chunk.DynamicChunk;
+import me.pesekjak.machine.chunk.palette.PackedPalette;
+import me.pesekjak.machine.utils.NamespacedKey;
+import me.pesekjak.machine.world.blocks.BlockManager;
+import me.pesekjak.machine.world.blocks.BlockType;
+import org.intellij.lang.annotations.Subst;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.collections.ImmutableLongArray;
+import org.jglrxavpok.hephaistos.nbt.NBT;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+import org.jglrxavpok.hephaistos.nbt.NBTList;
+import org.jglrxavpok.hephaistos.nbt.NBTType;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts block states of Anvil chunk sections directly from and to the
+ * block type palettes of chunk sections.
+ * <p>
+ * Sections of the chunk data are indexed from 0, same as the sections of the chunks.
+ * <p>
+ * Anvil stores the block states of a section as a local palette of block states
+ * and packed indices of the local palette, in the same layout the palettes of the
+ * sections use, so only the local palette has to be remapped, once per section,
+ * and the packed indices are shared as they are.
+ */
+class AnvilSectionCodec {
+
+    private static final int DATA_VERSION = 3120;
+
+    private static final String SECTIONS = "sections";
+    private static final String Y = "Y";
+    private static final String BLOCK_STATES = "block_states";
+    private static final String PALETTE = "palette";
+    private static final String DATA = "data";
+    private static final String NAME = "Name";
+    private static final String AIR = "minecraft:air";
+
+    private final @NotNull BlockManager blockManager;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, NBTCompound> states = new ConcurrentHashMap<>();
+
+    AnvilSectionCodec(@NotNull BlockManager blockManager) {
+        this.blockManager = blockManager;
+    }
+
+    /**
+     * Creates chunk data of an empty chunk.
+     * @param chunkX x coordinate of the chunk
+     * @param chunkZ z coordinate of the chunk
+     * @return chunk data
+     */
+    @NotNull NBTCompound createChunk(int chunkX, int chunkZ) {
+        return NBT.Compound(Map.of(
+                "DataVersion", NBT.Int(DATA_VERSION),
+                "xPos", NBT.Int(chunkX),
+                "zPos", NBT.Int(chunkZ),
+                "yPos", NBT.Int(0),
+                "Status", NBT.String("full"),
+                SECTIONS, NBT.List(NBTType.TAG_Compound, List.of())));
+    }
+
+    /**
+     * Reads block states of all sections in the chunk data to the chunk.
+     * @param chunk chunk to read the sections to
+     * @param data chunk data
+     */
+    void readSections(@NotNull DynamicChunk chunk, @NotNull NBTCompound data) {
+        final NBTList<NBTCompound> sections = data.getList(SECTIONS);
+        if(sections == null) return;
+        final int count = chunk.getSections().size();
+        for(NBTCompound section : sections) {
+            final Byte y = section.getByte(Y);
+            final NBTCompound blockStates = section.getCompound(BLOCK_STATES);
+            if(y == null || y < 0 || y >= count || blockStates == null) continue;
+            read(chunk, y, blockStates);
+        }
+    }
+
+    /**
+     * Replaces block states of the sections in the snapshot in the chunk data,
+     * other sections are kept as they are.
+     * @param data chunk data
+     * @param snapshot snapshot of the chunk
+     * @return new chunk data
+     */
+    @NotNull NBTCompound writeSections(@NotNull NBTCompound data, @NotNull ChunkSnapshot snapshot) {
+        final NBTList<NBTCompound> sections = data.getList(SECTIONS);
+        final PackedPalette[] blockTypes = snapshot.blockTypes();
+        final List<NBTCompound> updated = new ArrayList<>();
+        final BitSet remaining = (BitSet) snapshot.sections().clone();
+        if(sections != null) {
+            for(NBTCompound section : sections) {
+                final Byte y = section.getByte(Y);
+                if(y == null || y < 0 || !remaining.get(y)) {
+                    updated.add(section);
+                    continue;
+                }
+                updated.add(with(section, BLOCK_STATES, write(blockTypes[y])));
+                remaining.clear(y);
+            }
+        }
+        for(int y = remaining.nextSetBit(0); y >= 0; y = remaining.nextSetBit(y + 1))
+            updated.add(NBT.Compound(Map.of(Y, NBT.Byte(y), BLOCK_STATES, write(blockTypes[y]))));
+        return with(data, SECTIONS, NBT.List(NBTType.TAG_Compound, updated));
+    }
+
+    /**
+     * Reads Anvil block states of a section to a chunk.
+     * @param chunk chunk to read the block states to
+     * @param section index of the section
+     * @param blockStates block states of the section
+     */
+    private void read(@NotNull DynamicChunk chunk, int section, @NotNull NBTCompound blockStates) {
+        final NBTList<NBTCompound> palette = blockStates.getList(PALETTE);
+        if(palette == null || palette.getSize() == 0) return;
+        final int[] ids = new int[palette.getSize()];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = getId(palette.get(i).getString(NAME));
+        final ImmutableLongArray data = blockStates.getLongArray(DATA);
+        chunk.setPackedSection(section,
+                new PackedPalette(ids, data != null && data.getSize() != 0 ? data.copyArray() : null),
+                BlockType.CreateReason.SET);
+    }
+
+    /**
+     * Writes packed block types of a section in the Anvil format.
+     * @param blockTypes packed block type ids of the section
+     * @return block states of the section
+     */
+    private @NotNull NBTCompound write(@NotNull PackedPalette blockTypes) {
+        final List<NBTCompound> palette = new ArrayList<>(blockTypes.palette().length);
+        for(int id : blockTypes.palette())
+            palette.add(getState(id));
+        final Map<String, NBT> blockStates = new HashMap<>();
+        blockStates.put(PALETTE, NBT.List(NBTType.TAG_Compound, palette));
+        if(blockTypes.data() != null)
+            blockStates.put(DATA, NBT.LongArray(blockTypes.data()));
+        return NBT.Compound(blockStates);
+    }
+
+    /**
+     * Returns id of a block type with given name, block types that
+     * aren't registered are replaced with air.
+     * @param name name of the block type
+     * @return id of the block type
+     */
+    int getId(@Nullable String name) {
+        if(name == null) name = AIR;
+        final Integer cached = ids.get(name);
+        if(cached != null) return cached;
+        final @Subst("minecraft:air") String key = name;
+        BlockType blockType = blockManager.getBlockType(NamespacedKey.parse(key));
+        if(blockType == null) blockType = blockManager.getBlockType(NamespacedKey.minecraft("air"));
+        final int id = blockType != null ? Math.max(blockManager.getBlockId(blockType), 0) : 0;
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * Returns name of a block type with given id, ids of block types
+     * that aren't registered are named as air.
+     * @param id id of the block type
+     * @return name of the block type
+     */
+    @NotNull String getName(int id) {
+        final BlockType blockType = blockManager.getBlockType(id);
+        return blockType != null ? blockType.getName().toString() : AIR;
+    }
+
+    /**
+     * Returns Anvil block state of a block type with given id.
+     * @param id id of the block type
+     * @return block state of the block type
+     */
+    private @NotNull NBTCompound getState(int id) {
+        return states.computeIfAbsent(id, key -> NBT.Compound(Map.of(NAME, NBT.String(getName(key)))));
+    }
+
+    /**
+     * Creates copy of a compound with an entry replaced.
+     * @param compound compound to copy
+     * @param key key of the entry
+     * @param value new value of the entry
+     * @return copy of the compound
+     */
+    private static @NotNull NBTCompound with(@NotNull NBTCompound compound, @NotNull String key, @NotNull NBT value) {
+        final Map<String, NBT> entries = new HashMap<>(compound.asMapView());
+        entries.put(key, value);
+        return NBT.Compound(entries);
+    }
+
+}
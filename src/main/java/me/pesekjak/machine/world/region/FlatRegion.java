@@ -0,0 +1,279 @@
+package me.pesekjak.machine.world.region;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkSnapshot;
+import me.pesekjak.machine.chunk.DynamicChunk;
+import me.pesekjak.machine.chunk.palette.PackedPalette;
+import me.pesekjak.machine.utils.FriendlyByteBuf;
+import me.pesekjak.machine.utils.ZLib;
+import me.pesekjak.machine.world.WorldImpl;
+import me.pesekjak.machine.world.blocks.BlockType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Region stored as the packed block type palettes and light of its sections,
+ * meant for worlds that are loaded often and rarely change, such as lobbies.
+ * <p>
+ * The whole region file is compressed at once and read with a single read when
+ * the region is opened, the chunks are then loaded from the memory without any
+ * further access to the file. Names of the block types are stored once per region,
+ * so the palettes of the sections are remapped to the block type ids only once.
+ * <p>
+ * Because the file is always written as a whole, it's rewritten every time
+ * the region is flushed with any changes.
+ * <p>
+ * The file starts with {@link #MAGIC} and the version of the format, followed by the
+ * compressed list of the block type names and the chunks, each chunk is stored
+ * as its index in the region followed by its sections. Sections are stored as their
+ * palette of the block type name indices, packed palette indices, sky light and block light.
+ */
+public class FlatRegion extends Region {
+
+    private static final int MAGIC = 0x4D434652;
+    private static final byte VERSION = 1;
+    private static final int MAX_SIZE = 1 << 28;
+
+    private final @NotNull File file;
+    private final @NotNull AnvilSectionCodec codec;
+    private final @Nullable StoredChunk[] chunks = new StoredChunk[1024];
+
+    public FlatRegion(@NotNull WorldImpl world, @NotNull File file, int x, int z) throws IOException {
+        super(world, x, z);
+        this.file = file;
+        codec = new AnvilSectionCodec(world.getServer().getBlockManager());
+        read();
+    }
+
+    @Override
+    public @NotNull Chunk getChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) {
+        final Chunk loaded = getLoadedChunk(x, z);
+        if(loaded != null) return loaded;
+        try {
+            return loadChunk(x, z);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public @NotNull FlushResult flush() throws IOException {
+        synchronized (fileLock) {
+            final FlushResult result = super.flush();
+            if(result.chunks() != 0) write();
+            return result;
+        }
+    }
+
+    @Override
+    protected void writeSnapshot(@NotNull ChunkSnapshot snapshot) {
+        final int index = getIndex(snapshot.chunk().getChunkX(), snapshot.chunk().getChunkZ());
+        final int sections = snapshot.blockTypes().length;
+        StoredChunk stored = chunks[index];
+        if(stored == null || stored.blockTypes.length != sections)
+            stored = chunks[index] = new StoredChunk(sections, stored);
+        final BitSet dirty = snapshot.sections();
+        for(int section = dirty.nextSetBit(0); section >= 0; section = dirty.nextSetBit(section + 1)) {
+            stored.blockTypes[section] = snapshot.blockTypes()[section];
+            stored.skyLight[section] = snapshot.skyLight()[section];
+            stored.blockLight[section] = snapshot.blockLight()[section];
+        }
+    }
+
+    @Override
+    public boolean shouldGenerate(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) {
+        synchronized (fileLock) {
+            return chunks[getIndex(x, z)] == null;
+        }
+    }
+
+    /**
+     * Loads chunk from the memory, or generates it if it has not been generated yet.
+     * @param x x coordinate of the chunk in the region
+     * @param z z coordinate of the chunk in the region
+     * @return loaded chunk
+     */
+    private @NotNull Chunk loadChunk(int x, int z) throws IOException {
+        final StoredChunk stored;
+        synchronized (fileLock) {
+            final Chunk loaded = getLoadedChunk(x, z);
+            if(loaded != null) return loaded;
+            flush(); // the chunk could have been unloaded with changes that aren't written yet
+            stored = chunks[getIndex(x, z)];
+        }
+        final DynamicChunk chunk = new DynamicChunk(world, this.x * 32 + x, this.z * 32 + z);
+        if(stored != null) {
+            final int sections = Math.min(stored.blockTypes.length, chunk.getSections().size());
+            for(int section = 0; section < sections; section++) {
+                final PackedPalette blockTypes = stored.blockTypes[section];
+                if(blockTypes != null) {
+                    // the palette can adopt the packed data, the stored copy has to stay unchanged
+                    chunk.setPackedSection(section, new PackedPalette(blockTypes.palette().clone(),
+                            blockTypes.data() != null ? blockTypes.data().clone() : null), BlockType.CreateReason.SET);
+                }
+                final byte[] skyLight = stored.skyLight[section];
+                final byte[] blockLight = stored.blockLight[section];
+                if(skyLight != null && blockLight != null)
+                    chunk.setSectionLight(section, skyLight.clone(), blockLight.clone());
+            }
+            chunk.takeDirtySections(); // loaded data is already saved
+        } else {
+            chunk.generate(world.getGenerator());
+        }
+        synchronized (this) {
+            if(grid[x][z] != null) return grid[x][z]; // loaded by another thread meanwhile
+            grid[x][z] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the whole region file to the memory.
+     */
+    private void read() throws IOException {
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        if(bytes.length == 0) return;
+        final FriendlyByteBuf header = new FriendlyByteBuf(Unpooled.wrappedBuffer(bytes));
+        if(bytes.length < Integer.BYTES + 1 || header.readInt() != MAGIC)
+            throw new IOException("Region file " + file.getName() + " isn't a flat region file");
+        final byte version = header.readByte();
+        if(version != VERSION)
+            throw new IOException("Unsupported version " + version + " of region file " + file.getName());
+
+        final ByteBuf uncompressed = Unpooled.buffer(bytes.length * 4);
+        ZLib.decompress(Unpooled.wrappedBuffer(bytes, header.readerIndex(), header.readableBytes()), uncompressed, MAX_SIZE);
+        final FriendlyByteBuf buf = new FriendlyByteBuf(uncompressed);
+        final List<String> names = buf.readStringList(StandardCharsets.UTF_8);
+        final int[] ids = new int[names.size()];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = codec.getId(names.get(i));
+
+        final int count = buf.readVarInt();
+        for(int i = 0; i < count; i++) {
+            final int index = buf.readShort();
+            if(index < 0 || index >= chunks.length)
+                throw new IOException("Region file " + file.getName() + " is corrupted");
+            final StoredChunk stored = new StoredChunk(buf.readVarInt(), null);
+            for(int section = 0; section < stored.blockTypes.length; section++) {
+                final int[] palette = buf.readVarIntArray();
+                final long[] data = buf.readLongArray();
+                final byte[] skyLight = buf.readByteArray();
+                final byte[] blockLight = buf.readByteArray();
+                if(palette.length != 0) {
+                    for(int entry = 0; entry < palette.length; entry++) {
+                        if(palette[entry] < 0 || palette[entry] >= ids.length)
+                            throw new IOException("Region file " + file.getName() + " is corrupted");
+                        palette[entry] = ids[palette[entry]];
+                    }
+                    stored.blockTypes[section] = new PackedPalette(palette, data.length != 0 ? data : null);
+                }
+                stored.skyLight[section] = skyLight;
+                stored.blockLight[section] = blockLight;
+            }
+            chunks[index] = stored;
+        }
+    }
+
+    /**
+     * Writes the whole region to a temporary file which then replaces the region file,
+     * has to be called while holding the lock of the region file.
+     */
+    private void write() throws IOException {
+        final Map<Integer, Integer> nameIndices = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+        final FriendlyByteBuf chunkBuf = new FriendlyByteBuf();
+        int count = 0;
+        for(int index = 0; index < chunks.length; index++) {
+            final StoredChunk stored = chunks[index];
+            if(stored == null) continue;
+            count++;
+            chunkBuf.writeShort((short) index);
+            chunkBuf.writeVarInt(stored.blockTypes.length);
+            for(int section = 0; section < stored.blockTypes.length; section++) {
+                final PackedPalette blockTypes = stored.blockTypes[section];
+                if(blockTypes != null) {
+                    final int[] palette = new int[blockTypes.palette().length];
+                    for(int entry = 0; entry < palette.length; entry++) {
+                        palette[entry] = nameIndices.computeIfAbsent(blockTypes.palette()[entry], id -> {
+                            names.add(codec.getName(id));
+                            return names.size() - 1;
+                        });
+                    }
+                    chunkBuf.writeVarIntArray(palette);
+                    chunkBuf.writeLongArray(blockTypes.data() != null ? blockTypes.data() : new long[0]);
+                } else {
+                    chunkBuf.writeVarIntArray(new int[0]);
+                    chunkBuf.writeLongArray(new long[0]);
+                }
+                chunkBuf.writeByteArray(stored.skyLight[section] != null ? stored.skyLight[section] : new byte[0]);
+                chunkBuf.writeByteArray(stored.blockLight[section] != null ? stored.blockLight[section] : new byte[0]);
+            }
+        }
+
+        final FriendlyByteBuf uncompressed = new FriendlyByteBuf();
+        uncompressed.writeStringList(names, StandardCharsets.UTF_8);
+        uncompressed.writeVarInt(count);
+        uncompressed.unwrap().writeBytes(chunkBuf.unwrap());
+        final ByteBuf compressed = Unpooled.buffer(uncompressed.readableBytes() / 2);
+        ZLib.compress(uncompressed.unwrap(), compressed);
+
+        final FriendlyByteBuf output = new FriendlyByteBuf();
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.unwrap().writeBytes(compressed);
+
+        final File temporary = new File(file.getPath() + ".tmp");
+        Files.write(temporary.toPath(), output.finish());
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param x x coordinate of the chunk
+     * @param z z coordinate of the chunk
+     * @return index of the chunk in the region
+     */
+    private static int getIndex(int x, int z) {
+        return (x & 0x1F) + (z & 0x1F) * 32;
+    }
+
+    /**
+     * Saved data of a chunk, null entries are sections that have never been saved.
+     */
+    private static class StoredChunk {
+
+        private final @Nullable PackedPalette[] blockTypes;
+        private final byte @Nullable [] @NotNull [] skyLight;
+        private final byte @Nullable [] @NotNull [] blockLight;
+
+        /**
+         * @param sections number of sections of the chunk
+         * @param previous previous data of the chunk to copy the sections from
+         */
+        private StoredChunk(int sections, @Nullable StoredChunk previous) {
+            blockTypes = new PackedPalette[sections];
+            skyLight = new byte[sections][];
+            blockLight = new byte[sections][];
+            if(previous == null) return;
+            final int copied = Math.min(sections, previous.blockTypes.length);
+            System.arraycopy(previous.blockTypes, 0, blockTypes, 0, copied);
+            System.arraycopy(previous.skyLight, 0, skyLight, 0, copied);
+            System.arraycopy(previous.blockLight, 0, blockLight, 0, copied);
+        }
+
+    }
+
+}
@@ -0,0 +1,317 @@
+package me.pesekjak.machine.world.region;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkSnapshot;
+import me.pesekjak.machine.chunk.DynamicChunk;
+import me.pesekjak.machine.utils.ZLib;
+import me.pesekjak.machine.world.WorldImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+import org.jglrxavpok.hephaistos.nbt.CompressedProcesser;
+import org.jglrxavpok.hephaistos.nbt.NBT;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+import org.jglrxavpok.hephaistos.nbt.NBTReader;
+import org.jglrxavpok.hephaistos.nbt.NBTWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Region in Minecraft's Anvil file region format accessed through a memory-mapped file.
+ * <p>
+ * The whole file, including the 8 KiB header with the chunk locations and timestamps,
+ * is mapped to the memory. Compressed chunk payloads are inflated straight from the
+ * mapped memory without copying them first. Used sectors are tracked in a bitmap, chunks
+ * are rewritten in place if they fit in their sectors, otherwise they're moved to the
+ * first free run of sectors large enough, the file grows only if there is none.
+ * <p>
+ * The mapping grows in steps of {@link #MAPPING_GROWTH} bytes, which grows the file
+ * as well, the unused sectors at the end of the file are removed once the region
+ * is closed. Mappings are released by the garbage collector, a closed region throws
+ * {@link IOException} instead of accessing the region file.
+ */
+public class MappedRegion extends Region {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SECTORS = 2;
+    private static final int MAX_CHUNK_SECTORS = 255;
+    private static final int MAPPING_GROWTH = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 1 << 24;
+
+    private static final byte COMPRESSION_ZLIB = 2;
+    private static final byte COMPRESSION_NONE = 3;
+
+    private final @NotNull FileChannel channel;
+    private final @NotNull AnvilSectionCodec codec;
+    private final @NotNull BitSet usedSectors = new BitSet();
+    private @NotNull MappedByteBuffer buffer;
+    private boolean closed;
+
+    public MappedRegion(@NotNull WorldImpl world, @NotNull File file, int x, int z) throws IOException {
+        super(world, x, z);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        codec = new AnvilSectionCodec(world.getServer().getBlockManager());
+        buffer = map(Math.max(channel.size(), HEADER_SECTORS * SECTOR_SIZE));
+        readHeader();
+    }
+
+    @Override
+    public @NotNull Chunk getChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) {
+        final Chunk loaded = getLoadedChunk(x, z);
+        if(loaded != null) return loaded;
+        try {
+            return loadChunk(x, z);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public @NotNull FlushResult flush() throws IOException {
+        synchronized (fileLock) {
+            ensureOpen();
+            final FlushResult result = super.flush();
+            if(result.chunks() != 0) buffer.force();
+            return result;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            if(closed) return;
+            try {
+                super.close();
+                buffer.force();
+                truncate();
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    protected void writeSnapshot(@NotNull ChunkSnapshot snapshot) throws IOException {
+        final int index = getIndex(snapshot.chunk().getChunkX(), snapshot.chunk().getChunkZ());
+        NBTCompound data = readChunkData(index);
+        if(data == null) data = codec.createChunk(snapshot.chunk().getChunkX(), snapshot.chunk().getChunkZ());
+        writeChunkData(index, codec.writeSections(data, snapshot));
+    }
+
+    @Override
+    public boolean shouldGenerate(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) {
+        synchronized (fileLock) {
+            try {
+                ensureOpen();
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+            return buffer.getInt(getIndex(x, z) * Integer.BYTES) == 0;
+        }
+    }
+
+    /**
+     * Loads chunk from the region file to the memory, or generates it if it has
+     * not been generated yet. The region file is accessed while holding the lock of
+     * the region file, the chunk itself is filled or generated outside of it so chunks
+     * of the same region can load in parallel.
+     * @param x x coordinate of the chunk in the region
+     * @param z z coordinate of the chunk in the region
+     * @return loaded chunk
+     */
+    private @NotNull Chunk loadChunk(int x, int z) throws IOException {
+        final NBTCompound data;
+        synchronized (fileLock) {
+            final Chunk loaded = getLoadedChunk(x, z);
+            if(loaded != null) return loaded;
+            ensureOpen();
+            flush(); // the chunk could have been unloaded with changes that aren't written yet
+            data = readChunkData(getIndex(x, z));
+        }
+        final DynamicChunk chunk = new DynamicChunk(world, this.x * 32 + x, this.z * 32 + z);
+        if(data != null) {
+            codec.readSections(chunk, data);
+            chunk.takeDirtySections(); // loaded data is already saved
+        } else {
+            chunk.generate(world.getGenerator());
+        }
+        synchronized (this) {
+            if(grid[x][z] != null) return grid[x][z]; // loaded by another thread meanwhile
+            grid[x][z] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the data of a chunk, has to be called while holding the lock of the region file.
+     * @param index index of the chunk in the header
+     * @return data of the chunk, null if the chunk isn't saved in the region
+     */
+    private @Nullable NBTCompound readChunkData(int index) throws IOException {
+        final int location = buffer.getInt(index * Integer.BYTES);
+        if(location == 0) return null;
+        final int offset = (location >>> 8) * SECTOR_SIZE;
+        final int length = buffer.getInt(offset);
+        if(length <= 1 || length + Integer.BYTES > (location & 0xFF) * SECTOR_SIZE)
+            throw new IOException("Chunk " + index + " of region " + x + ", " + z + " is corrupted");
+        final byte compression = buffer.get(offset + Integer.BYTES);
+        final ByteBuffer payload = buffer.slice(offset + Integer.BYTES + 1, length - 1);
+        final ByteBuf input = Unpooled.wrappedBuffer(payload);
+        final ByteBuf uncompressed = switch (compression) {
+            case COMPRESSION_ZLIB -> {
+                final ByteBuf output = Unpooled.buffer(length * 4);
+                ZLib.decompress(input, output, MAX_CHUNK_SIZE);
+                yield output;
+            }
+            case COMPRESSION_NONE -> input;
+            default -> throw new IOException("Unsupported compression type " + compression + " of chunk " + index);
+        };
+        try (NBTReader reader = new NBTReader(new ByteBufInputStream(uncompressed), CompressedProcesser.NONE)) {
+            final NBT nbt = reader.read();
+            if(!(nbt instanceof NBTCompound compound))
+                throw new IOException("Chunk " + index + " of region " + x + ", " + z + " is corrupted");
+            return compound;
+        } catch (NBTException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * Writes the data of a chunk, has to be called while holding the lock of the region file.
+     * @param index index of the chunk in the header
+     * @param data data of the chunk
+     */
+    private void writeChunkData(int index, @NotNull NBTCompound data) throws IOException {
+        final ByteBuf uncompressed = Unpooled.buffer();
+        try (NBTWriter writer = new NBTWriter(new ByteBufOutputStream(uncompressed), CompressedProcesser.NONE)) {
+            writer.writeNamed("", data);
+        }
+        final ByteBuf compressed = Unpooled.buffer(uncompressed.readableBytes() / 2);
+        ZLib.compress(uncompressed, compressed);
+
+        final int length = compressed.readableBytes() + 1;
+        final int sectors = (length + Integer.BYTES + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        if(sectors > MAX_CHUNK_SECTORS)
+            throw new IOException("Chunk " + index + " of region " + x + ", " + z + " is too large to be saved");
+
+        final int location = buffer.getInt(index * Integer.BYTES);
+        final int oldOffset = location >>> 8;
+        final int oldSectors = location & 0xFF;
+        final int offset;
+        if(location != 0 && sectors <= oldSectors) {
+            offset = oldOffset;
+            usedSectors.clear(oldOffset + sectors, oldOffset + oldSectors);
+        } else {
+            if(location != 0) usedSectors.clear(oldOffset, oldOffset + oldSectors);
+            offset = allocate(sectors);
+        }
+        usedSectors.set(offset, offset + sectors);
+        ensureCapacity((long) (offset + sectors) * SECTOR_SIZE);
+
+        final int position = offset * SECTOR_SIZE;
+        buffer.putInt(position, length);
+        buffer.put(position + Integer.BYTES, COMPRESSION_ZLIB);
+        compressed.getBytes(compressed.readerIndex(), buffer.slice(position + Integer.BYTES + 1, length - 1));
+        buffer.putInt(index * Integer.BYTES, offset << 8 | sectors);
+        buffer.putInt(SECTOR_SIZE + index * Integer.BYTES, (int) (System.currentTimeMillis() / 1000));
+    }
+
+    /**
+     * Reads the header of the region file and marks the sectors used by the chunks,
+     * chunks with invalid locations are removed from the header.
+     */
+    private void readHeader() {
+        usedSectors.set(0, HEADER_SECTORS);
+        final int fileSectors = buffer.capacity() / SECTOR_SIZE;
+        for(int index = 0; index < 1024; index++) {
+            final int location = buffer.getInt(index * Integer.BYTES);
+            if(location == 0) continue;
+            final int offset = location >>> 8;
+            final int sectors = location & 0xFF;
+            if(offset < HEADER_SECTORS || sectors == 0 || offset + sectors > fileSectors) {
+                buffer.putInt(index * Integer.BYTES, 0);
+                continue;
+            }
+            usedSectors.set(offset, offset + sectors);
+        }
+    }
+
+    /**
+     * Finds the first run of free sectors large enough.
+     * @param sectors number of sectors
+     * @return offset of the first sector of the run
+     */
+    private int allocate(int sectors) {
+        int start = HEADER_SECTORS;
+        while (true) {
+            start = usedSectors.nextClearBit(start);
+            final int end = usedSectors.nextSetBit(start);
+            if(end == -1 || end - start >= sectors) return start;
+            start = end;
+        }
+    }
+
+    /**
+     * Grows the mapped file if it's smaller than given size.
+     * @param size required size of the file in bytes
+     */
+    private void ensureCapacity(long size) throws IOException {
+        if(size <= buffer.capacity()) return;
+        buffer.force();
+        buffer = map((size + MAPPING_GROWTH - 1) / MAPPING_GROWTH * MAPPING_GROWTH);
+    }
+
+    /**
+     * Maps the region file to the memory, the file grows if it's smaller
+     * than the mapped size.
+     * @param size size of the mapping
+     * @return mapped region file
+     */
+    private @NotNull MappedByteBuffer map(long size) throws IOException {
+        final long sectors = (size + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, sectors * SECTOR_SIZE);
+    }
+
+    /**
+     * Removes the unused sectors at the end of the region file. Some platforms
+     * don't allow truncating a file that is still mapped, on those the file keeps
+     * the unused sectors, which are ignored by the readers of the region files.
+     */
+    private void truncate() {
+        try {
+            channel.truncate((long) Math.max(usedSectors.length(), HEADER_SECTORS) * SECTOR_SIZE);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Checks whether the region is still open, has to be called while holding
+     * the lock of the region file.
+     * @throws IOException if the region has been closed
+     */
+    private void ensureOpen() throws IOException {
+        if(closed) throw new IOException("Region " + x + ", " + z + " is closed");
+    }
+
+    /**
+     * @param x x coordinate of the chunk
+     * @param z z coordinate of the chunk
+     * @return index of the chunk in the header
+     */
+    private static int getIndex(int x, int z) {
+        return (x & 0x1F) + (z & 0x1F) * 32;
+    }
+
+}
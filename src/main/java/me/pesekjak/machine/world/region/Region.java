@@ -3,30 +3,106 @@ package me.pesekjak.machine.world.region;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.ChunkSnapshot;
+import me.pesekjak.machine.chunk.DynamicChunk;
+import me.pesekjak.machine.chunk.WorldChunk;
 import me.pesekjak.machine.world.World;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
- * Represents a 32x32 grid of chunks.
+ * Represents a 32x32 grid of chunks, access to the grid is synchronized
+ * on the region.
+ * <p>
+ * Regions are saved in two steps, first snapshots of the changed chunks are
+ * taken, which is cheap and blocks the changes of the chunks only while their
+ * sections are packed, then the snapshots are written to the region file by
+ * {@link #flush()} on any thread. Access to the region file is synchronized on a separate lock, so
+ * the chunks of the region can be accessed while it's written.
  */
 @RequiredArgsConstructor
 @Getter
-public abstract class Region {
+public abstract class Region implements Closeable {
 
     protected final @NotNull World world;
     protected final int x;
     protected final int z;
     protected final @Nullable Chunk[][] grid = new Chunk[32][32];
+    protected final Object fileLock = new Object();
+    private final Deque<ChunkSnapshot> pending = new ArrayDeque<>();
 
     /**
-     * Saves the region.
+     * Saves the region, takes snapshots of all changed chunks and writes them.
      * @throws IOException if an I/O error occurs during saving
      */
-    public abstract void save() throws IOException;
+    public void save() throws IOException {
+        snapshot();
+        flush();
+    }
+
+    /**
+     * Takes snapshots of all chunks that changed since they've been saved last
+     * time, the snapshots are written once the region is flushed.
+     * @return number of taken snapshots
+     */
+    public synchronized int snapshot() {
+        int count = 0;
+        for(Chunk[] chunks : grid) {
+            for(Chunk chunk : chunks) {
+                if(!(chunk instanceof DynamicChunk dynamicChunk)) continue;
+                final ChunkSnapshot snapshot = dynamicChunk.takeSnapshot();
+                if(snapshot == null) continue;
+                pending.add(snapshot);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes all taken snapshots to the region file in the order they've been taken.
+     * If a snapshot fails to write, its sections are marked as changed again.
+     * @return number of written chunks and bytes of their block data
+     * @throws IOException if an I/O error occurs during writing
+     */
+    public @NotNull FlushResult flush() throws IOException {
+        int chunks = 0;
+        long bytes = 0;
+        synchronized (fileLock) {
+            while (true) {
+                final ChunkSnapshot snapshot;
+                synchronized (this) {
+                    snapshot = pending.poll();
+                }
+                if(snapshot == null) break;
+                try {
+                    writeSnapshot(snapshot);
+                } catch (Exception exception) {
+                    snapshot.chunk().markDirty(snapshot.sections());
+                    throw exception;
+                }
+                chunks++;
+                bytes += snapshot.size();
+            }
+        }
+        return new FlushResult(chunks, bytes);
+    }
+
+    /**
+     * Writes all taken snapshots and closes the region file,
+     * the region can't be used once it's closed.
+     * @throws IOException if an I/O error occurs during closing
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
 
     /**
      * Returns chunk at given relative coordinates.
@@ -36,6 +112,69 @@ public abstract class Region {
      */
     public abstract @NotNull Chunk getChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z);
 
+    /**
+     * Returns chunk at given relative coordinates only if it's already loaded.
+     * @param x x coordinate of the chunk in the region
+     * @param z z coordinate of the chunk in the region
+     * @return chunk at given coordinates, null if it isn't loaded
+     */
+    public synchronized @Nullable Chunk getLoadedChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) {
+        return grid[x][z];
+    }
+
+    /**
+     * Adds a chunk that has been unloaded before back to the region, if another
+     * chunk has been loaded at given coordinates meanwhile, the loaded chunk is kept.
+     * @param x x coordinate of the chunk in the region
+     * @param z z coordinate of the chunk in the region
+     * @param chunk chunk to add
+     * @return chunk loaded at given coordinates
+     */
+    public synchronized @NotNull Chunk restoreChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z, @NotNull Chunk chunk) {
+        final Chunk loaded = grid[x][z];
+        if(loaded != null) return loaded;
+        if(chunk instanceof WorldChunk worldChunk) worldChunk.setLoaded(true);
+        grid[x][z] = chunk;
+        return chunk;
+    }
+
+    /**
+     * Saves the chunk at given coordinates and removes it from the region. If the
+     * chunk fails to save, it's kept in the region.
+     * @param x x coordinate of the chunk in the region
+     * @param z z coordinate of the chunk in the region
+     * @return unloaded chunk, null if the chunk hasn't been loaded
+     * @throws IOException if an I/O error occurs during saving
+     */
+    public @Nullable Chunk unloadChunk(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z) throws IOException {
+        final Chunk chunk;
+        synchronized (this) {
+            chunk = grid[x][z];
+            if(chunk == null) return null;
+            if(chunk instanceof DynamicChunk dynamicChunk) {
+                final ChunkSnapshot snapshot = dynamicChunk.takeSnapshot();
+                if(snapshot != null) pending.add(snapshot);
+            }
+            grid[x][z] = null;
+            if(chunk instanceof WorldChunk worldChunk) worldChunk.setLoaded(false);
+        }
+        try {
+            flush();
+        } catch (Exception exception) {
+            restoreChunk(x, z, chunk);
+            throw exception;
+        }
+        return chunk;
+    }
+
+    /**
+     * Writes a snapshot of a chunk to the region file, called while holding
+     * the lock of the region file.
+     * @param snapshot snapshot to write
+     * @throws IOException if an I/O error occurs during writing
+     */
+    protected abstract void writeSnapshot(@NotNull ChunkSnapshot snapshot) throws IOException;
+
     /**
      * Returns true if the chunk at given coordinates has not yet been generated - its
      * save doesn't contains any data about it.
@@ -45,4 +184,12 @@ public abstract class Region {
      */
     public abstract boolean shouldGenerate(@Range(from = 0, to = 31) int x, @Range(from = 0, to = 31) int z);
 
+    /**
+     * Result of a region flush.
+     * @param chunks number of written chunks
+     * @param bytes number of bytes of the block data of the written chunks
+     */
+    public record FlushResult(int chunks, long bytes) {
+    }
+
 }
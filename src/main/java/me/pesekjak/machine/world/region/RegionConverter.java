@@ -0,0 +1,78 @@
+package me.pesekjak.machine.world.region;
+
+import lombok.experimental.UtilityClass;
+import me.pesekjak.machine.chunk.Chunk;
+import me.pesekjak.machine.chunk.DynamicChunk;
+import me.pesekjak.machine.world.WorldImpl;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts region files of a world between the region formats.
+ */
+@UtilityClass
+public class RegionConverter {
+
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.(\\w+)");
+
+    /**
+     * Converts all region files in given format in a region folder to another format,
+     * the original region files are kept. The world can't be loaded while its regions
+     * are converted. Both regions are closed once each region file is converted.
+     * @param world world of the regions
+     * @param regionFolder folder with the region files
+     * @param source format of the region files to convert
+     * @param target format to convert the region files to
+     * @return number of converted chunks
+     * @throws IOException if an I/O error occurs during the conversion
+     */
+    public static int convert(@NotNull WorldImpl world, @NotNull File regionFolder, @NotNull RegionFormat source, @NotNull RegionFormat target) throws IOException {
+        if(source.getExtension().equals(target.getExtension()))
+            throw new IllegalArgumentException("Region formats " + source + " and " + target + " use the same region files");
+        final File[] files = regionFolder.listFiles();
+        if(files == null) throw new IOException("Failed to list region files in " + regionFolder.getPath());
+        int converted = 0;
+        for(File file : files) {
+            final Matcher matcher = REGION_FILE.matcher(file.getName());
+            if(!matcher.matches() || !matcher.group(3).equals(source.getExtension())) continue;
+            final int regionX = Integer.parseInt(matcher.group(1));
+            final int regionZ = Integer.parseInt(matcher.group(2));
+            try (Region sourceRegion = source.open(world, regionFolder, regionX, regionZ);
+                 Region targetRegion = target.open(world, regionFolder, regionX, regionZ)) {
+                converted += convert(sourceRegion, targetRegion);
+            }
+        }
+        return converted;
+    }
+
+    /**
+     * Copies all saved chunks of a region to another region and saves it.
+     * @param source region to copy the chunks from
+     * @param target region to copy the chunks to
+     * @return number of copied chunks
+     */
+    private static int convert(@NotNull Region source, @NotNull Region target) throws IOException {
+        int converted = 0;
+        for(int x = 0; x < 32; x++) {
+            for(int z = 0; z < 32; z++) {
+                if(source.shouldGenerate(x, z)) continue;
+                final Chunk chunk = source.getChunk(x, z);
+                if(chunk instanceof DynamicChunk dynamicChunk) {
+                    final BitSet sections = new BitSet();
+                    sections.set(0, dynamicChunk.getSections().size());
+                    dynamicChunk.markDirty(sections);
+                }
+                target.restoreChunk(x, z, chunk);
+                converted++;
+            }
+        }
+        target.save();
+        return converted;
+    }
+
+}
@@ -0,0 +1,89 @@
+package me.pesekjak.machine.world.region;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import me.pesekjak.machine.world.WorldImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.mca.AnvilException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Implementation used to access the region files of a server world.
+ */
+@RequiredArgsConstructor
+@Getter
+public enum RegionFormat {
+
+    /**
+     * Anvil region files accessed through Hephaistos.
+     * @see AnvilRegion
+     */
+    ANVIL("mca"),
+    /**
+     * Anvil region files accessed through memory-mapped files.
+     * @see MappedRegion
+     */
+    MAPPED("mca"),
+    /**
+     * Compressed region files with the packed palettes of the sections,
+     * each read at once.
+     * @see FlatRegion
+     */
+    FLAT("mcf");
+
+    private final @NotNull String extension;
+
+    /**
+     * Returns file of a region in this format.
+     * @param regionFolder folder with the region files
+     * @param regionX x coordinate of the region
+     * @param regionZ z coordinate of the region
+     * @return file of the region
+     */
+    public @NotNull File getFile(@NotNull File regionFolder, int regionX, int regionZ) {
+        return new File(regionFolder, "r." + regionX + "." + regionZ + "." + extension);
+    }
+
+    /**
+     * Opens a region in this format, its file is created if it doesn't exist.
+     * @param world world of the region
+     * @param regionFolder folder with the region files
+     * @param regionX x coordinate of the region
+     * @param regionZ z coordinate of the region
+     * @return opened region
+     * @throws IOException if an I/O error occurs during opening
+     */
+    public @NotNull Region open(@NotNull WorldImpl world, @NotNull File regionFolder, int regionX, int regionZ) throws IOException {
+        final File file = getFile(regionFolder, regionX, regionZ);
+        if(!file.createNewFile() && !file.exists())
+            throw new IOException("Failed to create region file " + file.getName());
+        return switch (this) {
+            case ANVIL -> {
+                try {
+                    yield new AnvilRegion(world, file, regionX, regionZ);
+                } catch (AnvilException exception) {
+                    throw new IOException(exception);
+                }
+            }
+            case MAPPED -> new MappedRegion(world, file, regionX, regionZ);
+            case FLAT -> new FlatRegion(world, file, regionX, regionZ);
+        };
+    }
+
+    /**
+     * Returns region format of given name.
+     * @param name name of the region format
+     * @return region format with given name
+     */
+    public static @Nullable RegionFormat getByName(@NotNull String name) {
+        for (RegionFormat value : values()) {
+            if (value.name().equalsIgnoreCase(name))
+                return value;
+        }
+        return null;
+    }
+
+}